@@ -0,0 +1,234 @@
+/*
+ * Created on Oct 17, 2026
+ *
+ * Copyright 2026 Azureus Software, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package com.vuze.plugins.azmsgsync;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Plugin wide off-heap storage for the payloads of messages held in channel windows so that heap
+ * use and GC work don't grow with the number of channels joined. Memory is carved out of direct
+ * buffer chunks into power of two slots, freed slots are reused by later allocations of the same
+ * size class. Chunks are never returned, the arena stays at its high water mark.
+ *
+ * This trades long lived heap for short lived garbage: every read of a payload held here copies it
+ * into a new array, and serving sync requests reads the content and history of each message sent.
+ * Worth it with many mostly idle channels joined, not for a few busy ones.
+ *
+ * Enabled with -Daz.msgsync.offheap.enable=1
+ */
+
+public class
+MsgSyncArena
+{
+	protected static final boolean ENABLED = System.getProperty( "az.msgsync.offheap.enable", "0" ).equals( "1" );
+	
+	private static final int	CHUNK_SIZE		= 256*1024;
+	
+	private static final int	MIN_SLOT_SHIFT	= 6;		// 64 bytes
+	private static final int	MAX_SLOT_SHIFT	= 11;		// 2K, anything larger stays on heap
+	
+	private static final int	NUM_CLASSES		= MAX_SLOT_SHIFT - MIN_SLOT_SHIFT + 1;
+	
+		// readers don't lock so chunks are published via a volatile array that only ever grows
+		
+	private static volatile ByteBuffer[]	chunks = new ByteBuffer[0];
+	
+		// per size class stacks of free slot handles
+		
+	private static final long[][]	free_slots	= new long[NUM_CLASSES][];
+	private static final int[]		free_counts	= new int[NUM_CLASSES];
+	
+	private static long		slots_in_use;
+	private static long		bytes_in_use;
+	
+	private static final Object	lock = new Object();
+	
+		/**
+		 * @return handle of a slot of at least len bytes or -1 if the length isn't supported
+		 */
+
+	protected static long
+	allocate(
+		int		len )
+	{
+		int	cls = getSizeClass( len );
+		
+		if ( cls < 0 ){
+			
+			return( -1 );
+		}
+		
+		synchronized( lock ){
+			
+			if ( free_counts[cls] == 0 ){
+				
+				addChunk( cls );
+			}
+			
+			long handle = free_slots[cls][--free_counts[cls]];
+			
+			slots_in_use++;
+			bytes_in_use += 1 << ( cls + MIN_SLOT_SHIFT );
+			
+			return( handle );
+		}
+	}
+	
+		/**
+		 * Once freed the slot can be handed out again immediately, callers have to stop reading from it first
+		 */
+
+	protected static void
+	free(
+		long	handle,
+		int		len )
+	{
+		int	cls = getSizeClass( len );
+		
+		synchronized( lock ){
+			
+			long[]	stack = free_slots[cls];
+			
+			if ( free_counts[cls] == stack.length ){
+				
+				long[] bigger = new long[ stack.length * 2 ];
+				
+				System.arraycopy( stack, 0, bigger, 0, stack.length );
+				
+				free_slots[cls] = stack = bigger;
+			}
+			
+			stack[free_counts[cls]++] = handle;
+			
+			slots_in_use--;
+			bytes_in_use -= 1 << ( cls + MIN_SLOT_SHIFT );
+		}
+	}
+	
+	protected static void
+	write(
+		long		handle,
+		int			offset,
+		byte[]		data )
+	{
+		ByteBuffer	bb = getBuffer( handle, offset );
+		
+		bb.put( data );
+	}
+	
+	protected static byte[]
+	read(
+		long		handle,
+		int			offset,
+		int			len )
+	{
+		byte[]	result = new byte[len];
+		
+		if ( len > 0 ){
+			
+			ByteBuffer	bb = getBuffer( handle, offset );
+			
+			bb.get( result );
+		}
+		
+		return( result );
+	}
+	
+	protected static String
+	getStats()
+	{
+		synchronized( lock ){
+			
+			return( "chunks=" + chunks.length + ", slots=" + slots_in_use + ", bytes=" + bytes_in_use + "/" + (long)chunks.length*CHUNK_SIZE );
+		}
+	}
+	
+	private static ByteBuffer
+	getBuffer(
+		long		handle,
+		int			offset )
+	{
+			// duplicate so concurrent users don't interfere with each other's positions
+			
+		ByteBuffer	bb = chunks[(int)( handle >>> 32 )].duplicate();
+		
+		bb.position((int)handle + offset );
+		
+		return( bb );
+	}
+	
+	private static int
+	getSizeClass(
+		int		len )
+	{
+		for ( int i=0;i<NUM_CLASSES;i++){
+			
+			if ( len <= 1 << ( i + MIN_SLOT_SHIFT )){
+				
+				return( i );
+			}
+		}
+		
+		return( -1 );
+	}
+	
+	private static void
+	addChunk(
+		int		cls )
+	{
+		ByteBuffer[]	old_chunks = chunks;
+		
+		int	chunk_index = old_chunks.length;
+		
+		ByteBuffer[]	new_chunks = new ByteBuffer[ chunk_index + 1 ];
+		
+		System.arraycopy( old_chunks, 0, new_chunks, 0, chunk_index );
+		
+		new_chunks[chunk_index] = ByteBuffer.allocateDirect( CHUNK_SIZE );
+		
+		chunks = new_chunks;
+		
+		int	slot_size	= 1 << ( cls + MIN_SLOT_SHIFT );
+		int	num_slots	= CHUNK_SIZE / slot_size;
+		
+		long[]	stack = free_slots[cls];
+		
+		if ( stack == null || stack.length < free_counts[cls] + num_slots ){
+			
+			long[]	bigger = new long[ free_counts[cls] + num_slots ];
+			
+			if ( stack != null ){
+				
+				System.arraycopy( stack, 0, bigger, 0, free_counts[cls] );
+			}
+			
+			free_slots[cls] = stack = bigger;
+		}
+		
+			// push in reverse so slots are handed out in address order
+			
+		for ( int i=num_slots-1;i>=0;i--){
+			
+			stack[free_counts[cls]++] = ((long)chunk_index << 32 ) | ( i*slot_size );
+		}
+	}
+}
@@ -0,0 +1,409 @@
+/*
+ * Created on Oct 17, 2026
+ *
+ * Copyright 2026 Azureus Software, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package com.vuze.plugins.azmsgsync;
+
+import java.util.*;
+
+import com.biglybt.core.util.ByteArrayHashMap;
+import com.biglybt.core.util.RandomUtils;
+import com.biglybt.core.util.bloom.BloomFilter;
+import com.biglybt.core.util.bloom.BloomFilterFactory;
+
+/**
+ * Sync bloom that is maintained in place as messages and tombstones come and go rather than
+ * being rebuilt from scratch on every mutation. Evicted keys can't be removed from an add-only
+ * bloom so they are left in place and accounted as stale - once too many have built up, or the
+ * bloom has been around long enough that its rand should be rotated, it is rebuilt. Stale message
+ * signatures only cause the responder to hold back messages we'd discard anyway. A stale node key
+ * would cause it to leave out the public key for that node's messages so nodes stay listed, with
+ * their key, until the next rebuild even once their last message has gone.
+ *
+ * All methods must be called with the owning handler's message_lock held
+ */
+
+public class
+MsgSyncBloomState
+{
+	private static final int	MIN_BLOOM_BITS		= 8*8;
+	
+	private static final int	REBUILD_PERIOD		= 30*1000;
+	
+	private static final int	MAX_REBUILD_RETRIES	= 4;
+	
+	private final Map<MsgSyncNode,NodeEntry>	node_entries = new HashMap<MsgSyncNode, NodeEntry>();
+	
+	private int				generation;
+	
+	private byte[]			rand;
+	private BloomFilter		bloom;
+	private long			create_time;
+	
+	private int				capacity;
+	private int				entry_count;
+	private int				stale_count;
+	private int				clash_count;
+	
+	private long			stat_rebuilds;
+	private long			stat_incremental_adds;
+	
+	protected void
+	messageAdded(
+		MsgSyncMessage		msg )
+	{
+		MsgSyncNode node = msg.getNode();
+		
+		NodeEntry entry = node_entries.get( node );
+		
+		if ( entry == null ){
+			
+			entry = new NodeEntry();
+			
+			node_entries.put( node, entry );
+		}
+		
+		entry.refs++;
+		
+		if ( bloom != null ){
+			
+			addKey( msg.getSignature());
+			
+			updateNodeKey( node, entry );
+		}
+	}
+	
+	protected void
+	messageRemoved(
+		MsgSyncMessage		msg )
+	{
+		MsgSyncNode node = msg.getNode();
+		
+		NodeEntry entry = node_entries.get( node );
+		
+		if ( entry != null ){
+			
+			entry.refs--;
+			
+			if ( entry.refs <= 0 ){
+				
+					// keep it if its key is in the bloom, we need to be able to verify messages
+					// sent without it
+					
+				if ( bloom == null || entry.key == null ){
+					
+					node_entries.remove( node );
+					
+				}else{
+					
+					stale_count++;
+				}
+			}
+		}
+		
+		if ( bloom != null ){
+			
+			stale_count++;
+		}
+	}
+	
+	protected void
+	tombstoneAdded(
+		byte[]		inv_signature )
+	{
+		if ( bloom != null ){
+			
+			addKey( inv_signature );
+		}
+	}
+	
+	protected void
+	tombstoneRemoved()
+	{
+		if ( bloom != null ){
+			
+			stale_count++;
+		}
+	}
+	
+	protected boolean
+	needsRebuild(
+		long		now )
+	{
+		if ( bloom == null || now - create_time >= REBUILD_PERIOD || now < create_time ){
+			
+			return( true );
+		}
+		
+		if ( entry_count > capacity ){
+			
+			return( true );
+		}
+		
+			// stale entries and clashes both push up the false positive rate so rebuild once they
+			// make up a decent fraction of the filter
+			
+		return( stale_count + clash_count > Math.max( 8, entry_count/4 ));
+	}
+	
+	protected void
+	rebuild(
+		Collection<MsgSyncMessage>	messages,
+		Collection<byte[]>			inv_signatures,
+		long						now )
+	{
+		node_entries.clear();
+		
+			// slight chance of duplicate keys (maybe two nodes share a public key due to a restart)
+			// so just use distinct ones
+			
+		ByteArrayHashMap<String>	distinct = new ByteArrayHashMap<String>();
+		
+		List<byte[]>	keys = new ArrayList<byte[]>( messages.size()*2 + inv_signatures.size());
+		
+		for ( MsgSyncMessage msg: messages ){
+			
+			MsgSyncNode node = msg.getNode();
+			
+			NodeEntry entry = node_entries.get( node );
+			
+			if ( entry == null ){
+				
+				entry = new NodeEntry();
+				
+				node_entries.put( node, entry );
+				
+				byte[] node_key = node.getBloomKey();
+				
+				if ( node_key != null && !distinct.containsKey( node_key )){
+					
+					distinct.put( node_key, "" );
+					
+					keys.add( node_key );
+				}
+				
+				entry.key = node_key;
+			}
+			
+			entry.refs++;
+			
+			byte[] sig = msg.getSignature();
+			
+			if ( !distinct.containsKey( sig )){
+				
+				distinct.put( sig, "" );
+				
+				keys.add( sig );
+			}
+		}
+		
+		for ( byte[] inv_sig: inv_signatures ){
+			
+			if ( !distinct.containsKey( inv_sig )){
+				
+				distinct.put( inv_sig, "" );
+				
+				keys.add( inv_sig );
+			}
+		}
+		
+		int	num_keys = keys.size();
+		
+			// leave some headroom so that incremental additions don't immediately degrade the filter
+			
+		int	headroom = Math.max( 8, num_keys/4 );
+		
+		int	best_clashes = -1;
+		
+		for ( int i=0;i<MAX_REBUILD_RETRIES;i++){
+			
+			byte[] 		new_rand = new byte[8];
+			
+			RandomUtils.nextSecureBytes( new_rand );
+			
+				// in theory we could have 128 sigs + 128 pks + 128 deleted -> 384 + headroom -> 4800 bits -> 600 bytes + overhead
+				
+			int	bloom_bits = ( num_keys + headroom ) * 10 + RandomUtils.nextInt( 19 );
+			
+			if ( bloom_bits < MIN_BLOOM_BITS ){
+				
+				bloom_bits = MIN_BLOOM_BITS;
+			}
+			
+			BloomFilter	new_bloom = BloomFilterFactory.createAddOnly( bloom_bits );
+			
+			int	clashes = 0;
+			
+			for ( byte[] key: keys ){
+				
+				if ( addKey( new_bloom, new_rand, key )){
+					
+					clashes++;
+				}
+			}
+			
+			if ( best_clashes == -1 || clashes < best_clashes ){
+				
+				best_clashes	= clashes;
+				rand			= new_rand;
+				bloom			= new_bloom;
+			}
+			
+				// a few clashes are tolerable, they just mean that the key's bits were already set. only
+				// go around again if things look unusually bad for this rand
+				
+			if ( clashes <= num_keys/32 ){
+				
+				break;
+			}
+		}
+		
+		create_time		= now;
+		capacity		= num_keys + headroom;
+		entry_count		= num_keys;
+		stale_count		= 0;
+		clash_count		= best_clashes;
+		
+		generation++;
+		
+		stat_rebuilds++;
+	}
+	
+	protected int
+	getGeneration()
+	{
+		return( generation );
+	}
+	
+	protected byte[]
+	getRand()
+	{
+		return( rand );
+	}
+	
+	protected Map<String,Object>
+	serialiseBloom()
+	{
+		return( bloom==null?null:bloom.serialiseToMap());
+	}
+	
+		/**
+		 * Brings the bloom up to date with respect to any node public key/address changes and returns
+		 * the current set of message originators, along with any past ones whose keys are still in
+		 * the bloom
+		 */
+
+	protected List<MsgSyncNode>
+	getNodes()
+	{
+		List<MsgSyncNode>	result = new ArrayList<MsgSyncNode>( node_entries.size());
+		
+		for ( Map.Entry<MsgSyncNode,NodeEntry> e: node_entries.entrySet()){
+			
+			MsgSyncNode node = e.getKey();
+			
+			if ( bloom != null ){
+				
+				updateNodeKey( node, e.getValue());
+			}
+			
+			result.add( node );
+		}
+		
+		return( result );
+	}
+	
+	protected String
+	getStats()
+	{
+		return( "entries=" + entry_count + "/" + capacity + ", stale=" + stale_count + ", clashes=" + clash_count + ", rebuilds=" + stat_rebuilds + ", incremental=" + stat_incremental_adds );
+	}
+	
+	private void
+	updateNodeKey(
+		MsgSyncNode		node,
+		NodeEntry		entry )
+	{
+		byte[] node_key = node.getBloomKey();
+		
+		if ( node_key != entry.key ){
+			
+			if ( entry.key != null ){
+				
+				stale_count++;
+			}
+			
+			entry.key = node_key;
+			
+			if ( node_key != null ){
+				
+				addKey( node_key );
+			}
+		}
+	}
+	
+	private void
+	addKey(
+		byte[]		key )
+	{
+		if ( addKey( bloom, rand, key )){
+			
+			clash_count++;
+		}
+		
+		entry_count++;
+		
+		stat_incremental_adds++;
+	}
+	
+		/**
+		 * @return true if the key clashed with existing entries
+		 */
+
+	private static boolean
+	addKey(
+		BloomFilter		bloom,
+		byte[]			rand,
+		byte[]			key )
+	{
+		byte[] x = key.clone();
+		
+		for ( int j=0;j<rand.length;j++){
+			
+			x[j] ^= rand[j];
+		}
+		
+		if ( bloom.contains( x )){
+			
+			return( true );
+		}
+		
+		bloom.add( x );
+		
+		return( false );
+	}
+	
+	private static class
+	NodeEntry
+	{
+		private int			refs;
+		private byte[]		key;
+	}
+}
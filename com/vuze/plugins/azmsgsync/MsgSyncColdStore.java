@@ -0,0 +1,803 @@
+/*
+ * Created on Oct 17, 2026
+ *
+ * Copyright 2026 Azureus Software, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package com.vuze.plugins.azmsgsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import com.biglybt.core.util.BDecoder;
+import com.biglybt.core.util.BEncoder;
+import com.biglybt.core.util.Debug;
+import com.biglybt.core.util.HashWrapper;
+
+/**
+ * On-disk tier for messages that have aged out of a channel's in-memory window. Only the signature,
+ * timestamp and file position of each message is kept in memory, records are appended to a log
+ * file as length prefixed bencoded maps and the file is compacted once it is mostly dead space.
+ * Explicit removals are logged as records holding just the signature so they survive a reload.
+ *
+ * Records added since the last flush are held in memory until then so that adding never does
+ * any disk I/O. The in-memory index has its own lock, which lookups from the message path take,
+ * while file access is serialised by a separate lock and done without holding the index one so a
+ * flush or compaction doesn't hold up message processing
+ */
+
+public class
+MsgSyncColdStore
+{
+	private static final int	MIN_COMPACT_BYTES	= 64*1024;
+	private static final int	MAX_RECORD_SIZE		= 16*1024;
+	
+	private final File		file;
+	
+	private int		max_entries;
+	
+	private final Map<HashWrapper,Entry>	index = new HashMap<HashWrapper,Entry>();
+	
+		// the same entries oldest first so trimming and listing the newest don't need a scan or sort.
+		// messages that were already old when received can arrive out of order so the order can't
+		// simply be insertion order
+	
+	private final TreeSet<Entry>	by_time = 
+		new TreeSet<Entry>(
+			new Comparator<Entry>()
+			{
+				@Override
+				public int
+				compare(
+					Entry	e1,
+					Entry	e2 )
+				{
+					int	res = Long.compare( e1.timestamp, e2.timestamp );
+					
+					if ( res == 0 ){
+						
+						res = Long.compare( e1.seq, e2.seq );
+					}
+					
+					return( res );
+				}
+			});
+	
+	private long	next_seq;
+	
+	private long	file_length;
+	private long	live_bytes;
+	
+	private List<Entry>		pending = new ArrayList<Entry>();
+	
+	private List<byte[]>	pending_removals = new ArrayList<byte[]>();
+	
+		// held for any file access, always taken before the store's own monitor
+	
+	private final Object		io_lock = new Object();
+	
+	private RandomAccessFile	raf;
+	
+	protected
+	MsgSyncColdStore(
+		File		_file,
+		int			_max_entries )
+	{
+		file		= _file;
+		max_entries	= _max_entries;
+		
+		load();
+	}
+	
+	protected synchronized void
+	setMaxEntries(
+		int		_max_entries )
+	{
+		max_entries	= _max_entries;
+		
+		trim();
+	}
+	
+	protected synchronized int
+	size()
+	{
+		return( index.size());
+	}
+	
+	protected synchronized boolean
+	contains(
+		byte[]		signature )
+	{
+		return( index.containsKey( new HashWrapper( signature )));
+	}
+	
+		/**
+		 * @param record the message as it should be written to disk, must contain the signature
+		 * under "s" and timestamp under "t"
+		 */
+
+	protected synchronized void
+	add(
+		byte[]				signature,
+		long				timestamp,
+		Map<String,Object>	record )
+	{
+		HashWrapper	hw = new HashWrapper( signature );
+		
+		if ( index.containsKey( hw )){
+			
+			return;
+		}
+		
+		Entry entry = new Entry( signature, timestamp, next_seq++ );
+		
+		entry.pending_record = record;
+		
+		index.put( hw, entry );
+		
+		by_time.add( entry );
+		
+		pending.add( entry );
+		
+		trim();
+	}
+	
+		/**
+		 * Unlike entries dropped by trimming (which happens again on reload) the removal is recorded
+		 * on disk at the next flush
+		 * @return false if not present
+		 */
+	
+	protected synchronized boolean
+	remove(
+		byte[]		signature )
+	{
+		Entry entry = index.get( new HashWrapper( signature ));
+		
+		if ( entry == null ){
+			
+			return( false );
+		}
+		
+		removeEntry( entry );
+		
+			// the record may already be on disk or being written, a removal for one that never
+			// makes it there is ignored when loading
+		
+		pending_removals.add( entry.signature );
+		
+		return( true );
+	}
+	
+		/**
+		 * @return timestamp of the oldest entry, 0 if empty
+		 */
+	
+	protected synchronized long
+	getOldestTimestamp()
+	{
+		return( by_time.isEmpty()?0:by_time.first().timestamp );
+	}
+	
+		/**
+		 * @param before only entries with an older timestamp are returned, 0 for all of them
+		 * @return up to max entries, newest first
+		 */
+
+	protected synchronized List<Entry>
+	getEntries(
+		long	before,
+		int		max )
+	{
+		List<Entry>	result = new ArrayList<Entry>( Math.min( max, index.size()));
+		
+		Iterator<Entry> it;
+		
+		if ( before > 0 ){
+			
+			it = by_time.headSet( new Entry( null, before, Long.MIN_VALUE ), false ).descendingIterator();
+			
+		}else{
+			
+			it = by_time.descendingIterator();
+		}
+		
+		while( result.size() < max && it.hasNext()){
+			
+			result.add( it.next());
+		}
+			
+		return( result );
+	}
+	
+		/**
+		 * @return the record or null if it has since been removed or can't be read
+		 */
+
+	protected Map<String,Object>
+	read(
+		Entry		entry )
+	{
+		synchronized( io_lock ){
+			
+			long	offset;
+			int		length;
+			
+			synchronized( this ){
+				
+				if ( !index.containsKey( new HashWrapper( entry.signature ))){
+					
+					return( null );
+				}
+				
+				if ( entry.pending_record != null ){
+					
+					return( entry.pending_record );
+				}
+				
+				offset	= entry.offset;
+				length	= entry.length;
+			}
+			
+			try{
+				RandomAccessFile f = getFile();
+				
+				byte[] bytes = new byte[ length ];
+				
+				f.seek( offset );
+				
+				f.readFully( bytes );
+				
+				return( BDecoder.decode( bytes ));
+				
+			}catch( Throwable e ){
+				
+				closeFile();
+				
+				return( null );
+			}
+		}
+	}
+	
+	protected void
+	flush()
+	{
+		synchronized( io_lock ){
+			
+			boolean	do_compact;
+			
+			synchronized( this ){
+				
+				do_compact = live_bytes < file_length / 2 && file_length - live_bytes > MIN_COMPACT_BYTES;
+			}
+			
+			if ( do_compact ){
+				
+				compact();
+			}
+			
+			List<Entry>					to_write;
+			List<Map<String,Object>>	records;
+			List<byte[]>				removals;
+			long						start;
+			
+			synchronized( this ){
+				
+				if ( pending.isEmpty() && pending_removals.isEmpty()){
+					
+					return;
+				}
+				
+				to_write	= pending;
+				pending		= new ArrayList<Entry>();
+				
+				removals			= pending_removals;
+				pending_removals	= new ArrayList<byte[]>();
+				
+				records = new ArrayList<Map<String,Object>>( to_write.size());
+				
+				for ( Entry entry: to_write ){
+					
+						// null if removed before being written
+					
+					records.add( entry.pending_record );
+				}
+				
+				start = file_length;
+			}
+			
+			int		num			= to_write.size();
+			long[]	offsets 	= new long[num];
+			int[]	lengths		= new int[num];
+			long	pos			= start;
+			int		written		= 0;
+			int		removed		= 0;
+			
+			try{
+				RandomAccessFile f = getFile();
+				
+					// drop any partial record left by an interrupted write
+				
+				f.setLength( start );
+				
+				f.seek( start );
+				
+				for ( ;written<num;written++){
+					
+					Map<String,Object> record = records.get( written );
+					
+					if ( record == null ){
+						
+						continue;
+					}
+					
+					byte[] bytes = BEncoder.encode( record );
+					
+					if ( bytes.length > MAX_RECORD_SIZE ){
+						
+						lengths[written] = -1;
+						
+						continue;
+					}
+					
+					f.writeInt( bytes.length );
+					
+					f.write( bytes );
+					
+					offsets[written]	= pos + 4;
+					lengths[written]	= bytes.length;
+					
+					pos += 4 + bytes.length;
+				}
+				
+					// after the records as a removal has to follow the record it removes
+				
+				for ( ;removed<removals.size();removed++){
+					
+					Map<String,Object> record = new HashMap<String,Object>();
+					
+					record.put( "s", removals.get( removed ));
+					record.put( "d", 1L );
+					
+					byte[] bytes = BEncoder.encode( record );
+					
+					f.writeInt( bytes.length );
+					
+					f.write( bytes );
+					
+					pos += 4 + bytes.length;
+				}
+			}catch( Throwable e ){
+				
+				Debug.out( e );
+				
+				closeFile();
+			}
+			
+			synchronized( this ){
+				
+				for ( int i=0;i<num;i++){
+					
+					Entry				entry	= to_write.get( i );
+					Map<String,Object>	record	= records.get( i );
+					
+					if ( record == null || entry.pending_record != record ){
+						
+							// removed meanwhile, anything written for it is dead space
+						
+						continue;
+					}
+					
+					if ( i >= written ){
+						
+							// write failed, try again next time
+						
+						pending.add( entry );
+						
+					}else if ( lengths[i] < 0 ){
+						
+						removeEntry( entry );
+						
+					}else{
+						
+						entry.offset			= offsets[i];
+						entry.length			= lengths[i];
+						entry.pending_record	= null;
+						
+						live_bytes	+= 4 + lengths[i];
+					}
+				}
+				
+				for ( int i=removed;i<removals.size();i++){
+					
+					pending_removals.add( removals.get( i ));
+				}
+				
+				file_length = pos;
+			}
+		}
+	}
+	
+	protected void
+	delete()
+	{
+		synchronized( io_lock ){
+			
+			closeFile();
+			
+			synchronized( this ){
+				
+				index.clear();
+				
+				by_time.clear();
+				
+				pending.clear();
+				
+				pending_removals.clear();
+				
+				file_length	= 0;
+				live_bytes	= 0;
+			}
+			
+			file.delete();
+		}
+	}
+	
+		/**
+		 * Releases the file handle, it is reopened if the store is used again
+		 */
+	
+	protected void
+	close()
+	{
+		synchronized( io_lock ){
+			
+			closeFile();
+		}
+	}
+	
+	private void
+	trim()
+	{
+		while( index.size() > max_entries ){
+			
+			removeEntry( by_time.first());
+		}
+	}
+	
+	private void
+	removeEntry(
+		Entry		entry )
+	{
+		index.remove( new HashWrapper( entry.signature ));
+		
+		by_time.remove( entry );
+		
+		if ( entry.pending_record != null ){
+			
+			entry.pending_record = null;
+			
+		}else{
+			
+			live_bytes -= 4 + entry.length;
+		}
+	}
+	
+	private void
+	load()
+	{
+		if ( !file.exists()){
+			
+			return;
+		}
+		
+		RandomAccessFile raf = null;
+		
+		try{
+			raf = new RandomAccessFile( file, "r" );
+			
+			long	len = raf.length();
+			long	pos	= 0;
+			
+			while( pos + 4 <= len ){
+				
+				int	rec_len = raf.readInt();
+				
+				if ( rec_len <= 0 || rec_len > MAX_RECORD_SIZE || pos + 4 + rec_len > len ){
+					
+						// truncated write, anything after this is lost
+						
+					break;
+				}
+				
+				byte[] bytes = new byte[ rec_len ];
+				
+				raf.readFully( bytes );
+				
+				Map<String,Object> map = BDecoder.decode( bytes );
+				
+				byte[]	sig		= (byte[])map.get( "s" );
+				Number	time	= (Number)map.get( "t" );
+				
+				if ( sig != null && map.containsKey( "d" )){
+					
+					Entry old = index.remove( new HashWrapper( sig ));
+					
+					if ( old != null ){
+						
+						by_time.remove( old );
+						
+						live_bytes -= 4 + old.length;
+					}
+				}else if ( sig != null && time != null ){
+					
+					Entry entry = new Entry( sig, time.longValue(), next_seq++ );
+					
+					entry.offset	= pos + 4;
+					entry.length	= rec_len;
+					
+					Entry old = index.put( new HashWrapper( sig ), entry );
+					
+					if ( old == null ){
+						
+						live_bytes += 4 + rec_len;
+						
+					}else{
+						
+						by_time.remove( old );
+					}
+					
+					by_time.add( entry );
+				}
+				
+				pos += 4 + rec_len;
+			}
+			
+			file_length = pos;
+			
+		}catch( Throwable e ){
+			
+			index.clear();
+			
+			by_time.clear();
+			
+			live_bytes	= 0;
+			file_length	= 0;
+			
+		}finally{
+			
+			close( raf );
+		}
+		
+		trim();
+	}
+	
+		/**
+		 * Caller must hold io_lock
+		 */
+	
+	private void
+	compact()
+	{
+		List<Entry>	live;
+		
+		synchronized( this ){
+			
+			live = new ArrayList<Entry>( by_time.size());
+			
+			for ( Entry entry: by_time ){
+				
+				if ( entry.pending_record == null ){
+					
+					live.add( entry );
+				}
+			}
+		}
+		
+			// offsets are only changed by compaction so are stable while we hold io_lock
+		
+		File temp = new File( file.getParentFile(), file.getName() + ".tmp" );
+		
+		RandomAccessFile out	= null;
+		
+		long[]	new_offsets = new long[ live.size()];
+		
+		long	pos = 0;
+
+		boolean	ok = false;
+		
+		try{
+			RandomAccessFile in = getFile();
+			
+			out	= new RandomAccessFile( temp, "rw" );
+			
+			out.setLength( 0 );
+			
+			for ( int i=0;i<live.size();i++){
+				
+				Entry entry = live.get( i );
+				
+				byte[] bytes = new byte[ entry.length ];
+				
+				in.seek( entry.offset );
+				
+				in.readFully( bytes );
+				
+				out.writeInt( bytes.length );
+				
+				out.write( bytes );
+				
+				new_offsets[i] = pos + 4;
+				
+				pos += 4 + bytes.length;
+			}
+			
+			ok = true;
+			
+		}catch( Throwable e ){
+			
+			Debug.out( e );
+			
+		}finally{
+			
+			close( out );
+		}
+		
+		if ( !ok ){
+			
+			temp.delete();
+			
+			return;
+		}
+		
+		closeFile();
+		
+		file.delete();
+		
+		boolean renamed = temp.renameTo( file );
+		
+		synchronized( this ){
+			
+			if ( renamed ){
+				
+				long	live_total = 0;
+				
+				for ( int i=0;i<live.size();i++){
+					
+					Entry entry = live.get( i );
+					
+					entry.offset = new_offsets[i];
+					
+						// anything removed while we were copying is now dead space
+					
+					if ( index.get( new HashWrapper( entry.signature )) == entry ){
+						
+						live_total += 4 + entry.length;
+					}
+				}
+				
+				file_length	= pos;
+				live_bytes	= live_total;
+				
+			}else{
+				
+					// old file's gone so only what hasn't been written yet survives
+				
+				Iterator<Entry> it = index.values().iterator();
+				
+				while( it.hasNext()){
+					
+					Entry entry = it.next();
+					
+					if ( entry.pending_record == null ){
+						
+						it.remove();
+						
+						by_time.remove( entry );
+					}
+				}
+				
+				file_length	= 0;
+				live_bytes	= 0;
+			}
+		}
+		
+		if ( !renamed ){
+			
+			temp.delete();
+		}
+	}
+	
+		/**
+		 * Caller must hold io_lock
+		 */
+	
+	private RandomAccessFile
+	getFile()
+	
+		throws IOException
+	{
+		if ( raf == null ){
+			
+			raf = new RandomAccessFile( file, "rw" );
+		}
+		
+		return( raf );
+	}
+	
+	private void
+	closeFile()
+	{
+		close( raf );
+		
+		raf = null;
+	}
+	
+	private static void
+	close(
+		RandomAccessFile	raf )
+	{
+		if ( raf != null ){
+			
+			try{
+				raf.close();
+				
+			}catch( Throwable e ){
+			}
+		}
+	}
+	
+	protected synchronized String
+	getStats()
+	{
+		return( "cold=" + index.size() + "/" + max_entries + ", file=" + file_length + ", live=" + live_bytes );
+	}
+	
+	protected static class
+	Entry
+	{
+		protected final byte[]		signature;
+		protected final long		timestamp;
+		
+		private final long			seq;
+		
+		private long				offset;
+		private int					length;
+		
+		private Map<String,Object>	pending_record;
+		
+		private
+		Entry(
+			byte[]		_signature,
+			long		_timestamp,
+			long		_seq )
+		{
+			signature	= _signature;
+			timestamp	= _timestamp;
+			seq			= _seq;
+		}
+	}
+}
@@ -0,0 +1,227 @@
+/*
+ * Created on Oct 17, 2026
+ *
+ * Copyright 2026 Azureus Software, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package com.vuze.plugins.azmsgsync;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Raw deflate of sync replies primed with a dictionary of the bencoded reply structure. Deflaters
+ * and inflaters hold native memory so they're pooled rather than created per reply.
+ *
+ * The dictionary is part of the protocol - changing it requires a version bump
+ */
+
+public class
+MsgSyncCompression
+{
+		// below this the deflate overhead generally outweighs any saving
+		
+	protected static final int	MIN_COMPRESS_SIZE	= 128;
+	
+	private static final int	MAX_POOLED			= 8;
+	
+		// zlib favours matches near the end of the dictionary so the most common fragments go last
+		
+	private static final byte[]	DICTIONARY;
+	
+	static{
+		String dict =
+			"1:k" + "d1:a" + "1:p" + "e" +
+			"1:$" + "d" + "e" +
+			"1:p91:" + "1:p88:" +
+			"1:h0:" + "1:h4:" + "1:h8:" + "1:h12:" + "1:h16:" + "1:h20:" + "1:h24:" + "1:h28:" +
+			"1:s70:" + "1:s71:" + "1:s72:" +
+			"1:ai0e" + "1:ai1e" + "1:ai60e" + "1:ai300e" + "1:ai3600e" +
+			"d1:mld" + "ee" +
+			"d1:ai" + "e1:c" + "1:h" + "1:i8:" + "1:s" + "1:u8:" + "ed1:ai";
+			
+		byte[] bytes;
+		
+		try{
+			bytes = dict.getBytes( "ISO-8859-1" );
+			
+		}catch( Throwable e ){
+			
+			bytes = dict.getBytes();
+		}
+		
+		DICTIONARY = bytes;
+	}
+	
+	private static final LinkedList<Deflater>	deflaters 	= new LinkedList<Deflater>();
+	private static final LinkedList<Inflater>	inflaters 	= new LinkedList<Inflater>();
+	
+		/**
+		 * @return compressed data or null if compression isn't worth it
+		 */
+
+	protected static byte[]
+	compress(
+		byte[]		plain )
+	{
+		if ( plain.length < MIN_COMPRESS_SIZE ){
+			
+			return( null );
+		}
+		
+		Deflater deflater = getDeflater();
+		
+		try{
+			deflater.setDictionary( DICTIONARY );
+			
+			deflater.setInput( plain );
+			
+			deflater.finish();
+			
+				// no point in producing anything that isn't smaller
+				
+			byte[]	buffer = new byte[ plain.length ];
+			
+			int	pos = 0;
+			
+			while( !deflater.finished()){
+				
+				if ( pos == buffer.length ){
+					
+					return( null );
+				}
+				
+				pos += deflater.deflate( buffer, pos, buffer.length - pos );
+			}
+			
+			byte[]	result = new byte[pos];
+			
+			System.arraycopy( buffer, 0, result, 0, pos );
+			
+			return( result );
+			
+		}finally{
+			
+			releaseDeflater( deflater );
+		}
+	}
+	
+		/**
+		 * The stream must be closed to return the inflater to the pool
+		 */
+
+	protected static InputStream
+	getInputStream(
+		byte[]		compressed )
+	{
+		final Inflater inflater = getInflater();
+		
+		inflater.setDictionary( DICTIONARY );
+		
+		return(
+			new InflaterInputStream( new ByteArrayInputStream( compressed ), inflater )
+			{
+				private boolean	closed;
+				
+				@Override
+				public void
+				close()
+				
+					throws IOException
+				{
+					if ( !closed ){
+						
+						closed = true;
+						
+						releaseInflater( inflater );
+					}
+				}
+			});
+	}
+	
+	private static Deflater
+	getDeflater()
+	{
+		synchronized( deflaters ){
+			
+			if ( !deflaters.isEmpty()){
+				
+				return( deflaters.removeFirst());
+			}
+		}
+		
+		return( new Deflater( Deflater.BEST_COMPRESSION, true ));
+	}
+	
+	private static void
+	releaseDeflater(
+		Deflater	deflater )
+	{
+		deflater.reset();
+		
+		synchronized( deflaters ){
+			
+			if ( deflaters.size() < MAX_POOLED ){
+				
+				deflaters.add( deflater );
+				
+				return;
+			}
+		}
+		
+		deflater.end();
+	}
+	
+	private static Inflater
+	getInflater()
+	{
+		synchronized( inflaters ){
+			
+			if ( !inflaters.isEmpty()){
+				
+				return( inflaters.removeFirst());
+			}
+		}
+		
+		return( new Inflater( true ));
+	}
+	
+	private static void
+	releaseInflater(
+		Inflater	inflater )
+	{
+		inflater.reset();
+		
+		synchronized( inflaters ){
+			
+			if ( inflaters.size() < MAX_POOLED ){
+				
+				inflaters.add( inflater );
+				
+				return;
+			}
+		}
+		
+		inflater.end();
+	}
+}
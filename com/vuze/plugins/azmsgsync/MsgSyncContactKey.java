@@ -0,0 +1,133 @@
+/*
+ * Created on Oct 17, 2026
+ *
+ * Copyright 2026 Azureus Software, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package com.vuze.plugins.azmsgsync;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.biglybt.plugin.dht.DHTPluginContact;
+
+/**
+ * Canonical form of a contact's address for identity checks: a type byte, the raw IP (or host name
+ * for unresolved addresses such as I2P/Tor destinations) and the port packed into bytes with the
+ * hash worked out up front. Equal exactly when the addresses would be considered the same contact.
+ *
+ * Only for local use - anything sent to other nodes keeps using the string form of the address
+ */
+
+public class
+MsgSyncContactKey
+{
+	private static final byte	TYPE_UNRESOLVED	= 0;
+	private static final byte	TYPE_RESOLVED	= 1;
+	
+	private final byte[]	bytes;
+	private final int		hash;
+	
+	private
+	MsgSyncContactKey(
+		byte[]		_bytes )
+	{
+		bytes	= _bytes;
+		hash	= Arrays.hashCode( _bytes );
+	}
+	
+	protected static MsgSyncContactKey
+	create(
+		DHTPluginContact		contact )
+	{
+		return( create( contact.getAddress()));
+	}
+	
+	protected static MsgSyncContactKey
+	create(
+		InetSocketAddress		address )
+	{
+		byte	type;
+		byte[]	host;
+		
+		InetAddress ia = address.getAddress();
+		
+		if ( address.isUnresolved() || ia == null ){
+			
+			type	= TYPE_UNRESOLVED;
+			host	= address.getHostName().getBytes( StandardCharsets.UTF_8 );
+			
+		}else{
+			
+			type	= TYPE_RESOLVED;
+			host	= ia.getAddress();
+		}
+		
+		int	port = address.getPort();
+		
+		byte[]	bytes = new byte[ host.length + 3 ];
+		
+		bytes[0] = type;
+		
+		System.arraycopy( host, 0, bytes, 1, host.length );
+		
+		bytes[bytes.length-2] = (byte)( port >> 8 );
+		bytes[bytes.length-1] = (byte)port;
+		
+		return( new MsgSyncContactKey( bytes ));
+	}
+	
+		/**
+		 * @return the packed form, must not be modified
+		 */
+
+	protected byte[]
+	getBytes()
+	{
+		return( bytes );
+	}
+	
+	@Override
+	public int
+	hashCode()
+	{
+		return( hash );
+	}
+	
+	@Override
+	public boolean
+	equals(
+		Object		other )
+	{
+		if ( other == this ){
+			
+			return( true );
+		}
+		
+		if ( !( other instanceof MsgSyncContactKey )){
+			
+			return( false );
+		}
+		
+		MsgSyncContactKey o = (MsgSyncContactKey)other;
+		
+		return( hash == o.hash && Arrays.equals( bytes, o.bytes ));
+	}
+}
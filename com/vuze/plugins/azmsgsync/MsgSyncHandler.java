@@ -26,6 +26,8 @@ import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.Inet4Address;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
@@ -37,7 +39,6 @@ import java.security.Signature;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.ReentrantLock;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -50,6 +51,7 @@ import com.biglybt.core.config.COConfigurationManager;
 import com.biglybt.core.util.AENetworkClassifier;
 import com.biglybt.core.util.AERunStateHandler;
 import com.biglybt.core.util.AERunnable;
+import com.biglybt.core.util.AESemaphore;
 import com.biglybt.core.util.AEThreadVirtual;
 import com.biglybt.core.util.AEVerifier;
 import com.biglybt.core.util.BDecoder;
@@ -57,7 +59,6 @@ import com.biglybt.core.util.BEncoder;
 import com.biglybt.core.util.Base32;
 import com.biglybt.core.util.ByteArrayHashMap;
 import com.biglybt.core.util.ByteFormatter;
-import com.biglybt.core.util.Constants;
 import com.biglybt.core.util.Debug;
 import com.biglybt.core.util.FileUtil;
 import com.biglybt.core.util.HashWrapper;
@@ -104,8 +105,12 @@ MsgSyncHandler
 		// version 3 - increased max msg size from 350 to 600
 		// version 4 - optional reply compression
 		// version 5 - optional control data
+		// version 6 - IBLT set reconciliation as an alternative to the sync bloom
+		// version 7 - push of locally authored messages
+		// version 8 - dictionary primed reply compression
+		// version 9 - author key fingerprint hint
 	
-	private static final int VERSION		= 5;
+	private static final int VERSION		= 9;
 	
 	private static final int MIN_VERSION	= 4;
 	
@@ -146,6 +151,11 @@ MsgSyncHandler
 	private static final int	RT_SYNC_REPLY	= 1;
 	private static final int	RT_DH_REQUEST	= 2;
 	private static final int	RT_DH_REPLY		= 3;
+	private static final int	RT_PUSH_REQUEST	= 4;
+	private static final int	RT_PUSH_REPLY	= 5;
+	
+	private static final int	PUSH_FANOUT			= 3;
+	private static final int	MAX_PUSH_MESSAGES	= 8;
 
 	private int NODE_STATUS_CHECK_PERIOD			= 60*1000;
 	private int	NODE_STATUS_CHECK_TICKS				= NODE_STATUS_CHECK_PERIOD / MsgSyncPlugin.TIMER_PERIOD;
@@ -217,12 +227,18 @@ MsgSyncHandler
 	
 	private ByteArrayHashMap<List<MsgSyncNode>>		node_uid_map 		= new ByteArrayHashMap<List<MsgSyncNode>>();
 	private ByteArrayHashMap<MsgSyncNode>			node_uid_loopbacks	= new ByteArrayHashMap<MsgSyncNode>();
-
-	private static final int				MIN_BLOOM_BITS	= 8*8;
 	
+	private final MsgSyncNodeRegistry	node_registry = new MsgSyncNodeRegistry();
+
 	private static final int				MAX_MESSAGES			= 128;
 	private static final int				MAX_DELETED_MESSAGES	= 128;
 	
+		// the in-memory window stays at MAX_MESSAGES, anything beyond that up to the channel's 
+		// configured window goes to the cold store
+	
+	private static final int				MAX_RETAINED_MESSAGES	= 8192;
+	private static final int				MAX_COLD_REPLY_MESSAGES	= 16;
+	
 	private static final int				MAX_NODES				= 128;
 	private static final int				MIN_NODES				= 3;
 
@@ -230,6 +246,16 @@ MsgSyncHandler
 	
 	private static final int				MAX_MESSSAGE_REPLY_SIZE	= 4*1024;
 	
+		// requesters advertise a reply budget tuned from how their calls are going, responders
+		// clamp it. keep public replies UDP friendly, anonymous calls are expensive round trips 
+		// so allow bigger ones there
+	
+	private static final int				MIN_REPLY_BUDGET			= 2*1024;
+	
+	private static final int				MAX_DECOMPRESSED_REPLY_SIZE	= 256*1024;
+	private static final int				MAX_REPLY_BUDGET_PUBLIC		= 8*1024;
+	private static final int				MAX_REPLY_BUDGET_ANON		= 32*1024;
+	
 
 	/*
 	private static final int					ANON_DEST_USE_MIN_TIME	= 4500;
@@ -238,23 +264,63 @@ MsgSyncHandler
 	*/
 		
 	private Object							message_lock					= new Object();
-	private LinkedList<MsgSyncMessage>		messages 						= new LinkedList<MsgSyncMessage>();
-	private Map<HashWrapper,String>			deleted_messages_inverted_sigs_map = 
-			new LinkedHashMap<HashWrapper,String>(MAX_DELETED_MESSAGES,0.75f,true)
-			{
-				@Override
-				protected boolean
-				removeEldestEntry(
-			   		Map.Entry<HashWrapper,String> eldest) 
-				{
-					return size() > MAX_DELETED_MESSAGES;
-				}
-			};
+	private MsgSyncMessageStore				messages 						= new MsgSyncMessageStore( MAX_MESSAGES + 1 );
+	
+		// signatures of messages that have been deleted, held by their original signature (the bloom
+		// and IBLT use the inverted form). bounded, the oldest goes first
+	
+	private MsgSyncSigIndex					tombstone_sigs			= new MsgSyncSigIndex( MAX_DELETED_MESSAGES );
+	private byte[][]						tombstone_order			= new byte[MAX_DELETED_MESSAGES][];
+	private int								tombstone_next;
+	private boolean							tombstones_changed;	// since the last snapshot
+	
+	private final MsgSyncBloomState			bloom_state				= new MsgSyncBloomState();
 			
 	private int								message_mutation_id		= 0;	// needs to be zero as tested for
 	private int								message_new_count;
 	
-	private ByteArrayHashMap<String>		message_sigs			= new ByteArrayHashMap<String>();
+		// immutable view of the messages and tombstones, republished by writers under message_lock
+		// on every mutation so readers can work against a consistent version without locking
+	
+	private volatile MessageSnapshot		message_snapshot		= new MessageSnapshot( 0, new MsgSyncMessage[0], new MsgSyncSigIndex( 0 ));
+	
+	private static final long	LOCK_CONTENDED_NANOS	= 50*1000;
+	
+		// updated while holding message_lock
+	
+	private long		message_lock_acquires;
+	private long		message_lock_contended;
+	private long		message_lock_wait_nanos;
+	private long		message_lock_max_wait_nanos;
+	
+	private MsgSyncSigIndex					message_sigs			= new MsgSyncSigIndex( MAX_MESSAGES + 1 );
+	
+		// signatures of messages currently being verified by a sync, and a record of
+		// messages that definitely failed verification so replays don't cost us crypto
+	
+	private ByteArrayHashMap<String>		in_flight_sigs			= new ByteArrayHashMap<String>();
+	
+	private static final int MAX_BAD_MESSAGES	= 256;
+	
+	private Map<HashWrapper,String>	bad_message_cache = 
+		new LinkedHashMap<HashWrapper,String>(MAX_BAD_MESSAGES,0.75f,true)
+		{
+			@Override
+			protected boolean
+			removeEldestEntry(
+		   		Map.Entry<HashWrapper,String> eldest) 
+			{
+				return size() > MAX_BAD_MESSAGES;
+			}
+		};
+		
+	private volatile int		pre_verify_dupes;
+	private volatile int		pre_verify_in_flight;
+	private volatile int		pre_verify_bad;
+	
+	private volatile int		fingerprint_hints;
+	
+	private volatile int		ro_pre_verify_rejects;
 	
 	private static final int MAX_HISTORY_RECORD_LEN	= 80;
 	
@@ -269,9 +335,71 @@ MsgSyncHandler
 				return size() > 512;
 			}
 		};
+		
+	private static final int MAX_PROBE_CACHE	= 16;
+	
+	private Map<HashWrapper,ProbeCacheEntry>	probe_cache = 
+		new LinkedHashMap<HashWrapper,ProbeCacheEntry>(MAX_PROBE_CACHE,0.75f,true)
+		{
+			@Override
+			protected boolean
+			removeEldestEntry(
+		   		Map.Entry<HashWrapper,ProbeCacheEntry> eldest) 
+			{
+				return size() > MAX_PROBE_CACHE;
+			}
+		};
+		
+	private volatile int		probe_cache_hits;
+	private volatile int		probe_cache_misses;
+	
+	private static final int MAX_CONTACT_CACHE	= 256;
+	
+		// the same contact maps turn up over and over in messages and replies
+	
+	private Map<HashWrapper,DHTPluginContact>	contact_cache = 
+		new LinkedHashMap<HashWrapper,DHTPluginContact>(MAX_CONTACT_CACHE,0.75f,true)
+		{
+			@Override
+			protected boolean
+			removeEldestEntry(
+		   		Map.Entry<HashWrapper,DHTPluginContact> eldest) 
+			{
+				return size() > MAX_CONTACT_CACHE;
+			}
+		};
+		
+	private volatile int		contact_cache_hits;
+	private volatile int		contact_cache_misses;
 			
 	private static final int MAX_CONC_SYNC	= 5;
+	
+	private static final int MAX_SYNC_PAGES		= 32;
+	private static final int MAX_SYNC_PAGE_TIME	= 20*1000;
 	private static final int MAX_FAIL_SYNC	= 2;
+	
+		// sync targets are normally the best of a couple of random candidates by recent latency,
+		// failures and yield with a proportion chosen uniformly to keep exploring.
+		// disable with -Daz.msgsync.scoredselect.enable=0
+	
+	private static final boolean	SCORED_SELECTION			= System.getProperty( "az.msgsync.scoredselect.enable", "1" ).equals( "1" );
+	private static final int		SELECTION_CHOICES			= 2;
+	private static final int		SELECTION_EXPLORE_PERCENT	= 10;
+	
+	private final SelectionStats	scored_selection_stats	= new SelectionStats();
+	private final SelectionStats	uniform_selection_stats	= new SelectionStats();
+	
+		// optionally a sync round sends the same bloom to several nodes at once and goes with whichever
+		// replies first. with a hedge delay the extra nodes are only tried if there's no reply by then
+		// e.g. -Daz.msgsync.fanout.nodes=3 -Daz.msgsync.fanout.hedge=2000
+	
+	private static final int	FANOUT_NODES		= Math.max( 1, Math.min( 3, Integer.getInteger( "az.msgsync.fanout.nodes", 1 )));
+	private static final int	FANOUT_HEDGE_DELAY	= Math.max( 0, Integer.getInteger( "az.msgsync.fanout.hedge", 0 ));
+	
+	private volatile int		fanout_rounds;
+	private volatile int		fanout_sent;
+	private volatile int		fanout_cancelled;
+	private volatile int		fanout_late;
 		
 	private static final int MAX_CONC_TUNNELS	= 3;
 	
@@ -311,6 +439,23 @@ MsgSyncHandler
 		
 	private volatile int		consec_no_more_to_come;
 	private volatile int		last_more_to_come;
+	private volatile int		sync_continuations;
+	
+	private volatile int		reply_budget	= MAX_MESSSAGE_REPLY_SIZE;
+	
+	private volatile int		push_ok;
+	private volatile int		push_fail;
+	private volatile int		push_received;
+	
+	private volatile int		cold_served;
+	
+	private static final int	MAX_IBLT_DIFF_ESTIMATE	= 256;
+	
+	private volatile double		iblt_diff_estimate	= 8;
+	
+	private volatile int		iblt_ok;
+	private volatile int		iblt_fail;
+	private volatile int		iblt_fallbacks;		// our requests that had to be resent with a bloom
 	
 	private final byte[]	general_secret = new byte[16];
 	
@@ -351,8 +496,24 @@ MsgSyncHandler
 	private int					live_node_estimate;
 	
 	private boolean			save_messages;
-	private int				save_messages_mutation_id	= message_mutation_id;
-	private boolean			messages_loading;
+	
+		// recently live nodes are saved along with messages so a restart can sync without waiting for the DHT
+	
+	private static final int	MAX_CACHED_NODES		= 64;
+	private static final int	MAX_CACHED_NODE_AGE		= 2*60*60*1000;
+	
+	private volatile boolean	nodes_loaded;
+	private volatile boolean	warm_start_sync;
+	private volatile int		save_messages_mutation_id	= message_mutation_id;
+	private int					save_nodes_mutation_id		= -1;	// save_lock
+	private volatile boolean	messages_loading;
+	
+		// serialises saves, which work from the message snapshot rather than holding message_lock
+	
+	private final Object	save_lock = new Object();
+	
+	private int					max_messages	= MAX_MESSAGES;
+	private MsgSyncColdStore	cold_store;
 	
 	
 	private boolean		node_banning_enabled	= true;
@@ -929,6 +1090,15 @@ MsgSyncHandler
 			}
 		}
 		
+		Number n_max = (Number)options.get( "max_messages" );
+		
+		if ( n_max != null ){
+			
+			max_messages = Math.max( MAX_MESSAGES, Math.min( MAX_RETAINED_MESSAGES, n_max.intValue()));
+		}
+		
+		updateColdStore();
+		
 		byte[]	pk 		= (byte[])options.get( "pk" );
 
 		if ( pk != null ){
@@ -973,6 +1143,37 @@ MsgSyncHandler
 		}
 	}
 	
+		/**
+		 * The cold tier only exists when messages are being saved and the channel's window is larger
+		 * than what is kept in memory
+		 */
+	
+	private void
+	updateColdStore()
+	{
+		int	cold_max = save_messages?max_messages - MAX_MESSAGES:0;
+		
+		synchronized( message_lock ){
+			
+			if ( cold_max <= 0 ){
+				
+				if ( cold_store != null ){
+					
+					cold_store.delete();
+					
+					cold_store = null;
+				}
+			}else if ( cold_store == null ){
+				
+				cold_store = new MsgSyncColdStore( getMessageFile( "c" ), cold_max );
+				
+			}else{
+				
+				cold_store.setMaxEntries( cold_max );
+			}
+		}
+	}
+	
 	private static String
 	importString(
 		Map		map,
@@ -1195,24 +1396,9 @@ MsgSyncHandler
 				return( node_count_cache );
 			}
 			
-			for ( List<MsgSyncNode> nodes: node_uid_map.values()){
-				
-				for ( MsgSyncNode node: nodes ){
-					
-					total++;
-					
-					if ( node.getFailCount() == 0 ){
-						
-						if ( node.getLastAlive() > 0 ){
-							
-							live++;
-						}
-					}else{
-						
-						dying++;
-					}
-				}
-			}
+			total	= node_registry.getCount( MsgSyncNodeRegistry.SEL_ALL );
+			live	= node_registry.getCount( MsgSyncNodeRegistry.SEL_LIVE );
+			dying	= node_registry.getCount( MsgSyncNodeRegistry.SEL_FAILED );
 			
 			node_count_cache = new int[]{ total, live, dying }; 
 		
@@ -1237,22 +1423,123 @@ MsgSyncHandler
 	public List<MsgSyncMessage>
 	getMessages()
 	{
-		synchronized( message_lock ){
-
-			List<MsgSyncMessage> result = new ArrayList<MsgSyncMessage>( messages.size());
+		MsgSyncMessage[]	msgs = message_snapshot.messages;
+		
+		List<MsgSyncMessage> result = new ArrayList<MsgSyncMessage>( msgs.length );
 
-			for ( MsgSyncMessage msg: messages ){
+		for ( MsgSyncMessage msg: msgs ){
+			
+			if ( msg.getMessageType() == MsgSyncMessage.ST_NORMAL_MESSAGE ){
 				
-				if ( msg.getMessageType() == MsgSyncMessage.ST_NORMAL_MESSAGE ){
-					
-					if ( !isControlMessage( msg )){
-							
-						result.add( msg );
-					}
+				if ( !isControlMessage( msg )){
+						
+					result.add( msg );
 				}
 			}
+		}
+		
+		return( result );
+	}
+	
+		/**
+		 * Caller must hold message_lock
+		 */
+	
+	private void
+	publishSnapshot()
+	{
+		messages.publish();
+		
+			// the tombstones rarely change compared to the messages so share the last copy if we can
+		
+		MsgSyncSigIndex tombstones;
+		
+		if ( tombstones_changed ){
 			
-			return( result );
+			tombstones = tombstone_sigs.copy();
+			
+			tombstones_changed = false;
+			
+		}else{
+			
+			tombstones = message_snapshot.tombstones;
+		}
+		
+		message_snapshot = 
+			new MessageSnapshot( 
+				message_mutation_id, 
+				messages.getSnapshot(), 
+				tombstones );
+	}
+	
+		/**
+		 * Caller must hold message_lock
+		 */
+	
+	private void
+	addTombstone(
+		byte[]		signature )
+	{
+		if ( !tombstone_sigs.add( signature )){
+			
+			return;
+		}
+		
+		byte[]	evicted = tombstone_order[tombstone_next];
+		
+		if ( evicted != null ){
+			
+			tombstone_sigs.remove( evicted );
+			
+			bloom_state.tombstoneRemoved();
+		}
+		
+		tombstone_order[tombstone_next] = signature;
+		
+		tombstone_next = ( tombstone_next + 1 ) % MAX_DELETED_MESSAGES;
+		
+		tombstones_changed = true;
+		
+		bloom_state.tombstoneAdded( invert( signature ));
+	}
+	
+	private static byte[]
+	invert(
+		byte[]		signature )
+	{
+		byte[] inv_signature = signature.clone();
+		
+		for ( int i=0;i<inv_signature.length;i++ ){
+			
+			inv_signature[i] ^= 0xff;
+		}
+		
+		return( inv_signature );
+	}
+	
+		/**
+		 * Records how long it took to get message_lock, call immediately after acquiring it
+		 * @param wait_start System.nanoTime() before trying to acquire
+		 */
+	
+	private void
+	lockAcquired(
+		long		wait_start )
+	{
+		long	wait = System.nanoTime() - wait_start;
+		
+		message_lock_acquires++;
+		
+		if ( wait >= LOCK_CONTENDED_NANOS ){
+			
+			message_lock_contended++;
+		}
+		
+		message_lock_wait_nanos += wait;
+		
+		if ( wait > message_lock_max_wait_nanos ){
+			
+			message_lock_max_wait_nanos = wait;
 		}
 	}
 	
@@ -1291,7 +1578,7 @@ MsgSyncHandler
 			live_node_counter_bloom_start = now;
 		}
 		
-		byte[] key = node.getContactAddress().getBytes();
+		byte[] key = node.getAddressKey().getBytes();
 		
 		boolean present = live_node_counter_bloom.contains( key );
 		
@@ -1835,6 +2122,11 @@ MsgSyncHandler
 			}
 		}
 		
+		if ( !nodes_loaded ){
+			
+			loadNodes();
+		}
+		
 		if ( count % SECRET_TIDY_TICKS == 0 ){
 
 			synchronized( secret_activities ){
@@ -2023,45 +2315,23 @@ MsgSyncHandler
 			
 			synchronized( node_uid_map ){
 				
-				List<MsgSyncNode>	living		 	= new ArrayList<MsgSyncNode>( MAX_NODES*2 );
-				List<MsgSyncNode>	not_failing	 	= new ArrayList<MsgSyncNode>( MAX_NODES*2 );
-				List<MsgSyncNode>	failing 		= new ArrayList<MsgSyncNode>( MAX_NODES*2 );
-								
-				//if ( TRACE )trace( "Current nodes: ");
+				total	= node_registry.getCount( MsgSyncNodeRegistry.SEL_ALL );
+				live	= node_registry.getCount( MsgSyncNodeRegistry.SEL_LIVE );
+				failed	= node_registry.getCount( MsgSyncNodeRegistry.SEL_FAILED );
+				
+					// only the failed nodes need looking at individually
 				
-				for ( List<MsgSyncNode> nodes: node_uid_map.values()){
+				List<MsgSyncNode>	failing = new ArrayList<MsgSyncNode>( failed );
+				
+				for ( MsgSyncNode node: node_registry.getNodes( MsgSyncNodeRegistry.SEL_FAILED )){
 					
-					for ( MsgSyncNode node: nodes ){
+					if ( node.getFailCount() > 1 ){
 						
-						//if ( TRACE )trace( "    " + node.getContact().getAddress() + "/" + ByteFormatter.encodeString( node.getUID()));
+						to_remove.add( node );
 						
-						total++;
+					}else{
 						
-						if ( node.getFailCount() > 0 ){
-							
-							failed++;
-							
-							if ( node.getFailCount() > 1 ){
-								
-								to_remove.add( node );
-								
-							}else{
-								
-								failing.add( node );
-							}
-						}else{
-							
-							if ( node.getLastAlive() > 0 ){
-												
-								live++;
-								
-								living.add( node );
-								
-							}else{
-								
-								not_failing.add( node );
-							}
-						}
+						failing.add( node );
 					}
 				}
 				
@@ -2071,10 +2341,12 @@ MsgSyncHandler
 					
 					List<List<MsgSyncNode>>	lists = new ArrayList<List<MsgSyncNode>>();
 					
+					List<MsgSyncNode>	living = node_registry.getNodes( MsgSyncNodeRegistry.SEL_LIVE );
+					
 					Collections.shuffle( living );
 					
 					lists.add( failing );
-					lists.add( not_failing );
+					lists.add( node_registry.getNodes( MsgSyncNodeRegistry.SEL_UNKNOWN ));
 					lists.add( living );
 					
 					for ( List<MsgSyncNode> list: lists ){
@@ -2162,16 +2434,15 @@ MsgSyncHandler
 		
 		long	last_message_secs_ago;
 		
-		synchronized( message_lock ){
+		MsgSyncMessage[] current_messages = message_snapshot.messages;
+		
+		if ( current_messages.length == 0 ){
 			
-			if ( messages.isEmpty()){
-				
-				last_message_secs_ago = (SystemTime.getMonotonousTime() - create_time )/1000;
-				
-			}else{
-				
-				last_message_secs_ago = messages.getLast().getAgeSecs();
-			}
+			last_message_secs_ago = (SystemTime.getMonotonousTime() - create_time )/1000;
+			
+		}else{
+			
+			last_message_secs_ago = current_messages[current_messages.length-1].getAgeSecs();
 		}
 		
 			// slower sync rate for anonymous, higher latency/cost 
@@ -2200,6 +2471,15 @@ MsgSyncHandler
 		
 		//System.out.println( getName() + ": sync=" + SYNC_TICK_COUNT );
 		
+		if ( warm_start_sync ){
+			
+				// nodes restored from the cache are worth trying straight away rather than on the usual schedule
+			
+			warm_start_sync = false;
+			
+			return( sync( true ));
+		}
+		
 		if ( count % ( SYNC_TICK_COUNT)  == 0 ){
 
 			return( sync());
@@ -2275,9 +2555,11 @@ MsgSyncHandler
 						
 			if ( nodes != null ){
 				
+				MsgSyncContactKey key = MsgSyncContactKey.create( contact );
+				
 				for ( MsgSyncNode n: nodes ){
 					
-					if ( sameContact( n.getContact(), contact )){
+					if ( n.getAddressKey().equals( key )){
 						
 						return( n );
 					}
@@ -2295,6 +2577,8 @@ MsgSyncHandler
 				
 			nodes.add( node );		
 
+			node_registry.add( node );
+			
 			if ( TRACE )trace( "Add node: " + contact.getName() + ByteFormatter.encodeString( uid ) + "/" + (public_key==null?"no PK":"with PK" ) + ", total uids=" + node_uid_map.size());
 			
 			return( node );
@@ -2321,6 +2605,8 @@ MsgSyncHandler
 				
 				if ( nodes.remove( node )){
 					
+					node_registry.remove( node );
+					
 					if ( nodes.size() == 0 ){
 						
 						node_uid_map.remove( node_id );
@@ -2365,32 +2651,51 @@ MsgSyncHandler
 		}
 	}
 	
-	private boolean
-	sameContact(
-		DHTPluginContact		c1,
-		DHTPluginContact		c2 )
+		/**
+		 * Import via a cache keyed on the encoded map as importing can be relatively expensive, 
+		 * especially for anonymous contacts
+		 * @return null if the contact couldn't be imported
+		 */
+	
+	private DHTPluginContact
+	importContact(
+		Map<String,Object>		map )
 	{
-		InetSocketAddress a1 = c1.getAddress();
-		InetSocketAddress a2 = c2.getAddress();
+		HashWrapper	key;
 		
-		if ( a1.getPort() == a2.getPort()){
+		try{
+			key = new HashWrapper( BEncoder.encode( map ));
 			
-			if ( a1.isUnresolved() && a2.isUnresolved()){
-				
-				return( a1.getHostName().equals( a2.getHostName()));
-				
-			}else if ( a1.isUnresolved() || a2.isUnresolved()){
-				
-				return( false );
+		}catch( Throwable e ){
+			
+			return( dht.importContact( map ));
+		}
+		
+		synchronized( contact_cache ){
+			
+			DHTPluginContact contact = contact_cache.get( key );
+			
+			if ( contact != null ){
 				
-			}else{
+				contact_cache_hits++;
 				
-				return( a1.getAddress().equals( a2.getAddress()));
+				return( contact );
 			}
-		}else{
+		}
+		
+		contact_cache_misses++;
+		
+		DHTPluginContact contact = dht.importContact( map );
+		
+		if ( contact != null ){
 			
-			return( false );
+			synchronized( contact_cache ){
+				
+				contact_cache.put( key, contact );
+			}
 		}
+		
+		return( contact );
 	}
 	
 	private void
@@ -2525,7 +2830,7 @@ MsgSyncHandler
 			
 			if ( current > last ){
 				
-				DHTPluginContact new_contact = dht.importContact( opt_contact );
+				DHTPluginContact new_contact = importContact( opt_contact );
 				
 				if ( new_contact != null ){
 				
@@ -2534,6 +2839,11 @@ MsgSyncHandler
 			}
 		}
 				
+			// set if the message is older than everything in the in-memory window and went straight
+			// to the cold store
+		
+		boolean	went_cold = false;
+		
 		if ( msg.getMessageType() == MsgSyncMessage.ST_NORMAL_MESSAGE || is_incoming_or_loading ){
 			
 				// remember message if is it valid or it is incoming - latter is to 
@@ -2541,100 +2851,98 @@ MsgSyncHandler
 			
 			byte[]	signature = msg.getSignature();
 			
+			long	wait_start = System.nanoTime();
+			
 			synchronized( message_lock ){
 			
-				if ( message_sigs.containsKey( signature )){
+				lockAcquired( wait_start );
+				
+				if ( message_sigs.contains( signature )){
 										
 					return( false );
 				}
 				
-				byte[] inv_signature = signature.clone();
-				
-				for ( int i=0;i<inv_signature.length;i++ ){
+				if ( cold_store != null && cold_store.contains( signature )){
 					
-					inv_signature[i] ^= 0xff;
+					return( false );
 				}
 				
-				if ( deleted_messages_inverted_sigs_map.containsKey( new HashWrapper( inv_signature ))){
+				if ( tombstone_sigs.contains( signature )){
 										
 					return( false );
 				}
 				
-				message_sigs.put( signature, "" );
+				message_sigs.add( signature );
 				
 				int	num_messages = messages.size();
 				
-				ListIterator<MsgSyncMessage> lit = messages.listIterator( num_messages );
-				
-				int		insertion_point = num_messages;
-				boolean	added			= false;
+				int	insertion_point = messages.insert( msg );
 				
-				int	age_secs = msg.getAgeSecsWhenReceived();
-				
-				while( lit.hasPrevious()){
+				if ( messages.size() > MAX_MESSAGES ){
+											
+					MsgSyncMessage removed = messages.removeFirst();
 						
-					insertion_point--;
-
-					MsgSyncMessage prev  = lit.previous();
+					byte[]	removed_sig = removed.getSignature();
 					
-					if ( prev.getAgeSecs() >= age_secs ){
+					message_sigs.remove( removed_sig );
+					
+					if ( cold_store != null && removed.getMessageType() == MsgSyncMessage.ST_NORMAL_MESSAGE ){
 						
-						lit.next();
+						Map<String,Object> record = exportColdRecord( removed );
 						
-						lit.add( msg );
+						if ( record != null ){
 						
-						added = true;
+							cold_store.add( removed_sig, removed.getTimestamp(), record );
 						
-						break;
-					}			
-				}
-				
-				if ( !added ){
-				
-						// no older messages found, stick it at the front
-					
-					insertion_point = 0;
-					
-					messages.addFirst( msg );
-				}
-				
-				if ( messages.size() > MAX_MESSAGES ){
-											
-					MsgSyncMessage removed = messages.removeFirst();
-						
-					byte[]	removed_sig = removed.getSignature();
-					
-					message_sigs.remove( removed_sig );
+							went_cold = removed == msg;
+						}
+					}
 					
-					if ( removed == msg ){
+					if ( removed == msg && !went_cold ){
 											
 							// not added after all
 						
-						if ( deleted_messages_inverted_sigs_map.size() < MAX_DELETED_MESSAGES ){
+						if ( tombstone_sigs.size() < MAX_DELETED_MESSAGES ){
 							
 								// prevent further replay
 							
-							deleted_messages_inverted_sigs_map.put( new HashWrapper( inv_signature ), "" );
+							addTombstone( signature );
 							
 							message_mutation_id++;
+							
+							publishSnapshot();
 						}
 						
 						return( false );
 					}
 					
-					byte[] removed_inv_sig = removed_sig.clone();
+					if ( !went_cold ){
 					
-					for ( int j=0;j<removed_inv_sig.length;j++){
+						bloom_state.messageRemoved( removed );
 						
-						removed_inv_sig[j] ^= 0xff; 
+						removed.moveFromArena();
 					}
 					
-					deleted_messages_inverted_sigs_map.put( new HashWrapper( removed_inv_sig ), "" );
+					addTombstone( removed_sig );
 				}
-									
+				
+				if ( !went_cold ){
+				
+					bloom_state.messageAdded( msg );
+					
+						// destroy has already handed back the window's slots
+					
+					if ( !destroyed ){
+					
+						msg.moveToArena();
+					}
+				}
+				
 				message_mutation_id++;
 
-				if ( msg_source != MS_LOADING ){
+				publishSnapshot();
+				
+				if ( msg_source != MS_LOADING && !went_cold ){
 				
 					if ( insertion_point > num_messages / 2 ){
 						
@@ -2654,10 +2962,27 @@ MsgSyncHandler
 			
 			if ( !historyReceived( originator_pk, history )){
 				
+				if ( went_cold ){
+					
+						// the sender sets the age so don't let backdating get flooded messages onto disk
+					
+					discardColdMessage( msg.getSignature());
+					
+					return( false );
+				}
+				
 				msg.setLocalMessage( "Message ignored due to spam/flooding" );
 			}
 		}
 		
+		if ( went_cold ){
+			
+				// too old to have been shown in the baseline window, only kept to pass on to nodes with
+				// bigger windows
+			
+			return( true );
+		}
+		
 		if ( msg.getMessageType() == MsgSyncMessage.ST_NORMAL_MESSAGE || !is_incoming_or_loading ){
 			
 			if ( processControlMessage( msg )){
@@ -2684,6 +3009,33 @@ MsgSyncHandler
 		return( true );
 	}
 		
+	private void
+	discardColdMessage(
+		byte[]		signature )
+	{
+		long	wait_start = System.nanoTime();
+		
+		synchronized( message_lock ){
+			
+			lockAcquired( wait_start );
+			
+			MsgSyncColdStore cs = cold_store;
+			
+			if ( cs == null || !cs.remove( signature )){
+				
+				return;
+			}
+			
+				// prevent further replay
+			
+			addTombstone( signature );
+			
+			message_mutation_id++;
+			
+			publishSnapshot();
+		}
+	}
+	
 	private void
 	processCommand(
 		String		cmd )
@@ -2739,7 +3091,7 @@ MsgSyncHandler
 								last_alive_str = "";
 							}
 							
-							System.out.println( prefix + node.getContactAddress() + ", fails=" + fails + last_alive_str);
+							System.out.println( prefix + node.getContactAddress() + ", fails=" + fails + last_alive_str + ", " + node.getSyncStats());
 						}
 					}
 					
@@ -2837,6 +3189,8 @@ MsgSyncHandler
 					
 					reportSpamStatus();
 					
+					reportSyncStatus();
+					
 					return;
 					
 				}else if ( cmd.equals( "global_ban" )){
@@ -3133,7 +3487,12 @@ MsgSyncHandler
 			
 			byte[]	sig_bytes = sig.sign();
 			
-			addMessage( my_node, message_id, content, control, sig_bytes, 0, null, null, MS_LOCAL );
+			MsgSyncMessage msg = new MsgSyncMessage( my_node, message_id, content, control, sig_bytes, 0, null );
+			
+			if ( addMessage( msg, null, MS_LOCAL )){
+			
+				pushMessage( msg );
+			}
 			
 			sync( true );
 			
@@ -3143,6 +3502,324 @@ MsgSyncHandler
 		}
 	}
 		
+		/**
+		 * Pushes a message we've just authored directly to a few live nodes rather than waiting for 
+		 * them to pull it from us
+		 */
+	
+	private void
+	pushMessage(
+		final MsgSyncMessage		msg )
+	{
+		if ( parent_handler != null && private_messaging_secret == null ){
+			
+			return;
+		}
+		
+		List<MsgSyncNode>	targets = new ArrayList<MsgSyncNode>();
+		
+		synchronized( node_uid_map ){
+			
+			for ( MsgSyncNode node: node_registry.getNodes( MsgSyncNodeRegistry.SEL_LIVE )){
+				
+				if ( node.getProtocolVersion() >= 7 ){
+					
+					targets.add( node );
+				}
+			}
+		}
+		
+		Collections.shuffle( targets );
+		
+		for ( int i=0;i<targets.size() && i < PUSH_FANOUT;i++){
+			
+			final MsgSyncNode target = targets.get( i );
+			
+			if ( sync_pool.isFull()){
+				
+				break;
+			}
+			
+			sync_pool.runTask(
+				new AERunnable()
+				{	
+					@Override
+					public void 
+					runSupport() 
+					{
+						pushMessage( target, msg );
+					}
+				});
+		}
+	}
+	
+	private void
+	pushMessage(
+		MsgSyncNode			target,
+		MsgSyncMessage		msg )
+	{
+		try{
+			Map<String,Object> request_map = new HashMap<String,Object>();
+			
+			request_map.put( "v", VERSION );
+			
+			request_map.put( "t", RT_PUSH_REQUEST );
+	
+			request_map.put( "u", my_uid );
+			
+			byte[]	request_id = new byte[6];
+			
+			RandomUtils.nextBytes( request_id );
+			
+			request_map.put( "q", request_id );
+			
+			Map<String,Object> m = exportMessage( msg );
+			
+				// they may well not know us yet
+			
+			m.put( "p", my_node.getPublicKey());
+			m.put( "k", my_node.getContact().exportToMap());
+			
+			List<Map<String,Object>> l = new ArrayList<Map<String,Object>>( 1 );
+			
+			l.add( m );
+			
+			request_map.put( "m", l );
+			
+			Map<String,Object> reply_map = callSync( target, request_map );
+			
+			if ( reply_map == null ){
+				
+				return;
+			}
+			
+			Number	n_received 	= (Number)reply_map.get( "r" );
+			Number	n_had		= (Number)reply_map.get( "h" );
+			
+				// only counts if they took it or already had it, a rejected push isn't a delivery
+			
+			if (	( n_received != null && n_received.intValue() > 0 ) ||
+					( n_had != null && n_had.intValue() > 0 )){
+				
+				msg.delivered();
+				
+				msg.seen();
+			}
+			
+			push_ok++;
+			
+		}catch( Throwable e ){
+			
+			push_fail++;
+			
+			target.failed();
+		}
+	}
+	
+	private byte[]
+	handlePushRequest(
+		DHTPluginContact		originator,
+		Map<String,Object>		request_map )
+	
+		throws Exception
+	{
+		Map<String,Object> reply_map = new HashMap<String,Object>();
+
+		int		status;
+
+		byte[]	uid = (byte[])request_map.get( "u" );
+
+		if ( Arrays.equals( my_uid, uid )){
+			
+			status = STATUS_LOOPBACK;
+			
+		}else{
+			
+			status = STATUS_OK;
+			
+			MsgSyncNode originator_node = getOriginatorNode( originator, uid );
+			
+			nodeIsAlive( originator_node );
+			
+			originator_node.setProtocolVersion(((Number)request_map.get( "v" )).intValue());
+			
+			List<Map<String,Object>>	list = (List<Map<String,Object>>)request_map.get( "m" );
+			
+			if ( list != null && list.size() <= MAX_PUSH_MESSAGES ){
+				
+				int	had = 0;
+				
+				synchronized( message_lock ){
+					
+					for ( Map<String,Object> m: list ){
+						
+						byte[] signature = (byte[])m.get( "s" );
+						
+						if ( signature != null && message_sigs.contains( signature )){
+							
+							had++;
+						}
+					}
+				}
+				
+				int	received = receiveMessages( originator_node, buildBloom(), list );
+				
+				push_received += received;
+				
+				reply_map.put( "r", received );
+				reply_map.put( "h", had );
+			}
+		}
+		
+		reply_map.put( "s", status );
+		
+		reply_map.put( "t", RT_PUSH_REPLY );
+		
+		reply_map.put( "v", VERSION );
+
+		byte[] reply_data = BEncoder.encode( reply_map );
+		
+		if ( private_messaging_secret != null ){
+			
+			reply_data = privateMessageEncrypt( reply_data );
+			
+		}else{
+							
+			reply_data = generalMessageEncrypt( reply_data );
+		}
+		
+		return( reply_data );
+	}
+	
+	private MsgSyncNode
+	getOriginatorNode(
+		DHTPluginContact		originator,
+		byte[]					uid )
+	{
+		List<MsgSyncNode> caller_nodes = getNodes( uid );
+		
+		if ( caller_nodes != null ){
+			
+			MsgSyncContactKey key = MsgSyncContactKey.create( originator );
+			
+			for ( MsgSyncNode n: caller_nodes ){
+				
+				if ( n.getAddressKey().equals( key )){
+					
+					return( n );
+				}
+			}
+		}
+		
+		return( addNode( originator, uid, null ));
+	}
+	
+		/**
+		 * Wire format of a message as carried in sync replies and pushes, minus originator details
+		 */
+	
+	private Map<String,Object>
+	exportMessage(
+		MsgSyncMessage		message )
+	{
+		Map<String,Object> m = new HashMap<String,Object>();
+		
+		byte[] 	control = message.getControl();
+
+		m.put( "u", message.getNode().getUID());
+		m.put( "i", message.getID());
+		m.put( "c", message.getContent());
+		m.put( "s", message.getSignature());
+		m.put( "a", message.getAgeSecs());
+		m.put( "h", message.getHistory());
+		
+		if ( control != null ){
+			m.put( "$", control );
+		}
+		
+		return( m );
+	}
+	
+		/**
+		 * Cold records carry everything needed to serve the message without its node still being
+		 * around, content is encrypted as for the saved message file
+		 * @return null if the message can't be exported
+		 */
+	
+	private Map<String,Object>
+	exportColdRecord(
+		MsgSyncMessage		message )
+	{
+		MsgSyncNode	node = message.getNode();
+		
+		byte[]	pk		= node.getPublicKey();
+		byte[]	content	= generalMessageEncrypt( message.getContent());
+		
+		if ( pk == null || content == null ){
+			
+			return( null );
+		}
+		
+		Map<String,Object> m = new HashMap<String,Object>();
+		
+		byte[] 	control = message.getControl();
+
+		m.put( "s", message.getSignature());
+		m.put( "t", message.getTimestamp());
+		m.put( "u", node.getUID());
+		m.put( "p", pk );
+		m.put( "k", node.getContact().exportToMap());
+		m.put( "i", message.getID());
+		m.put( "c", content );
+		m.put( "h", message.getHistory());
+		
+		if ( control != null ){
+			m.put( "$", control );
+		}
+		
+		return( m );
+	}
+	
+		/**
+		 * @return the record in sync reply form, always with the public key and contact as the
+		 * requester is unlikely to still know the node
+		 */
+	
+	private Map<String,Object>
+	exportColdMessage(
+		Map<String,Object>		record )
+	{
+		byte[]	content = generalMessageDecrypt((byte[])record.get( "c" ));
+		
+		if ( content == null ){
+			
+			return( null );
+		}
+		
+		long	timestamp = ((Number)record.get( "t" )).longValue();
+		
+		int	age_secs = (int)( Math.max( 0, SystemTime.getCurrentTime() - timestamp ) / 1000 );
+		
+		Map<String,Object> m = new HashMap<String,Object>();
+		
+		m.put( "u", record.get( "u" ));
+		m.put( "i", record.get( "i" ));
+		m.put( "c", content );
+		m.put( "s", record.get( "s" ));
+		m.put( "a", age_secs );
+		m.put( "h", record.get( "h" ));
+		m.put( "p", record.get( "p" ));
+		m.put( "k", record.get( "k" ));
+		
+		Object control = record.get( "$" );
+		
+		if ( control != null ){
+			m.put( "$", control );
+		}
+		
+		return( m );
+	}
+	
 	private void
 	tryTunnel(
 		final MsgSyncNode		node,
@@ -3768,7 +4445,8 @@ MsgSyncHandler
 	sync(
 		final boolean		prefer_live )
 	{
-		MsgSyncNode	sync_node = null;
+		MsgSyncNode		sync_node 		= null;
+		SelectionStats	selection_stats	= null;
 		
 		synchronized( node_uid_map ){
 			
@@ -3792,47 +4470,13 @@ MsgSyncHandler
 				return( false );
 			}
 			
-			Set<String>	active_addresses = new HashSet<String>();
-			
-			for ( MsgSyncNode n: active_syncs ){
-				
-				active_addresses.add( n.getContactAddress());
-			}
-							
-			List<MsgSyncNode>	not_failed 	= new ArrayList<MsgSyncNode>( MAX_NODES*2 );
-			List<MsgSyncNode>	failed 		= new ArrayList<MsgSyncNode>( MAX_NODES*2 );
-			List<MsgSyncNode>	live 		= new ArrayList<MsgSyncNode>( MAX_NODES*2 );
+				// active nodes and anything else at their addresses are excluded by the registry
 			
-			for ( List<MsgSyncNode> nodes: node_uid_map.values()){
-				
-				for ( MsgSyncNode node: nodes ){
-					
-					if ( active_syncs.size() > 0 ){
-					
-						if ( active_syncs.contains( node ) || active_addresses.contains( node.getContactAddress())){
-						
-							continue;
-						}
-					}
-										
-					if ( node.getFailCount() == 0 ){
-						
-						not_failed.add( node );
-						
-						if ( node.getLastAlive() > 0 ){
-							
-							live.add( node );
-						}
-					}else{
-						
-						failed.add( node );
-					}
-				}
-			}
+			MsgSyncNode liveish = node_registry.pick( MsgSyncNodeRegistry.SEL_NOT_FAILED, false );
 			
-			if ( not_failed.size() > 0 ){
+			if ( liveish != null ){
 				
-				random_liveish_node = not_failed.get(RandomUtils.nextInt(not_failed.size()));
+				random_liveish_node = liveish;
 			}
 			
 			MsgSyncNode	current_biased_node_in 	= biased_node_in;
@@ -3842,11 +4486,13 @@ MsgSyncHandler
 			boolean	clear_biased_node_in	= false;
 			boolean	clear_prefer_live		= false;
 			
+			boolean	explore = !SCORED_SELECTION || RandomUtils.nextInt( 100 ) < SELECTION_EXPLORE_PERCENT;
+			
 			if ( current_biased_node_out != null ){
 				
 					// node_out should be live as we should have just successfully hit it
 				
-				if ( live.contains( current_biased_node_out )){
+				if ( node_registry.isSelectable( current_biased_node_out, MsgSyncNodeRegistry.SEL_LIVE )){
 								
 					sync_node = current_biased_node_out;
 					
@@ -3859,7 +4505,7 @@ MsgSyncHandler
 			
 					// node_in might be alive or unknown at this point
 				
-				if ( not_failed.contains( current_biased_node_in )){
+				if ( node_registry.isSelectable( current_biased_node_in, MsgSyncNodeRegistry.SEL_NOT_FAILED )){
 				
 					sync_node = current_biased_node_in;
 					
@@ -3870,13 +4516,15 @@ MsgSyncHandler
 				
 			}else{
 				
-				if ( prefer_live_sync_outstanding && live.size() > 0 ){
+				if ( prefer_live_sync_outstanding ){
 									
-					sync_node = getRandomSyncNode( live );
+					sync_node = pickSyncNode( MsgSyncNodeRegistry.SEL_LIVE, explore );
 					
 					if ( sync_node != null ){
 						
 						clear_prefer_live = true;
+						
+						selection_stats = explore?uniform_selection_stats:scored_selection_stats;
 					}
 				}
 			}
@@ -3893,15 +4541,17 @@ MsgSyncHandler
 					}
 				}
 				
-				if ( active_fails >= MAX_FAIL_SYNC && not_failed.size() > 0 ){
+				if ( active_fails >= MAX_FAIL_SYNC ){
 					
-					sync_node = getRandomSyncNode( not_failed );
+					sync_node = pickSyncNode( MsgSyncNodeRegistry.SEL_NOT_FAILED, explore );
 				}
 				
 				if ( sync_node == null ){
 					
-					sync_node = getRandomSyncNode( failed, not_failed );
+					sync_node = pickSyncNode( MsgSyncNodeRegistry.SEL_ALL, explore );
 				}
+				
+				selection_stats = explore?uniform_selection_stats:scored_selection_stats;
 			}
 			
 			if ( TRACE )trace( "    selected " + (sync_node==null?"none":sync_node.getName()));
@@ -3939,10 +4589,81 @@ MsgSyncHandler
 			}
 			
 			active_syncs.add( sync_node );
+			
+			node_registry.setActive( sync_node, true );
 		}
 						
-		final MsgSyncNode	f_sync_node = sync_node;
+		SyncRound	round = FANOUT_NODES>1?new SyncRound():null;
+		
+		dispatchSync( sync_node, selection_stats, round );
+		
+		if ( round != null ){
+			
+			fanout_rounds++;
+			
+			if ( FANOUT_HEDGE_DELAY > 0 ){
+				
+				round.scheduleHedge();
+				
+			}else{
+				
+				round.launchHedges();
+			}
+		}
+		
+		return( false );
+	}
+	
+		/**
+		 * Sends the rest of a round's syncs. Nodes already syncing, and so every address in the round, are
+		 * excluded from selection so the extra nodes are always at different addresses
+		 */
+	
+	private void
+	fanOut(
+		SyncRound		round )
+	{
+		boolean	explore = !SCORED_SELECTION || RandomUtils.nextInt( 100 ) < SELECTION_EXPLORE_PERCENT;
 		
+		for ( int i=1;i<FANOUT_NODES;i++){
+			
+			MsgSyncNode	node;
+			
+			synchronized( node_uid_map ){
+				
+				if ( destroyed || round.hasReply() || active_syncs.size() > MAX_CONC_SYNC || sync_pool.isFull()){
+					
+					return;
+				}
+				
+				node = pickSyncNode( MsgSyncNodeRegistry.SEL_NOT_FAILED, explore );
+				
+				if ( node == null ){
+					
+					return;
+				}
+				
+				active_syncs.add( node );
+				
+				node_registry.setActive( node, true );
+			}
+			
+			fanout_sent++;
+			
+			dispatchSync( node, explore?uniform_selection_stats:scored_selection_stats, round );
+		}
+	}
+	
+		/**
+		 * Node must already have been marked active
+		 */
+	
+	private void
+	dispatchSync(
+		final MsgSyncNode		sync_node,
+		final SelectionStats	selection_stats,
+		final SyncRound			round )
+	{
 		sync_pool.runTask(
 			new AERunnable()
 			{	
@@ -3950,202 +4671,363 @@ MsgSyncHandler
 				public void runSupport() {
 					try{
 						
-						sync( f_sync_node, false );
+						sync( sync_node, false, selection_stats, round );
 						
 					}finally{
 							
 						synchronized( node_uid_map ){
 							
-							active_syncs.remove( f_sync_node );
+							active_syncs.remove( sync_node );
+							
+							node_registry.setActive( sync_node, false );
 						}
 					}
 				}
 			});
-		
-		return( false );
 	}
 	
 	private MsgSyncNode
-	getRandomSyncNode(
-		List<MsgSyncNode>		nodes1,
-		List<MsgSyncNode>		nodes2 )
+	pickSyncNode(
+		int			selection,
+		boolean		explore )
 	{
-		List<MsgSyncNode>	nodes = new ArrayList<MsgSyncNode>( nodes1.size() + nodes2.size());
+		if ( explore ){
+			
+			return( node_registry.pick( selection, true ));
+			
+		}else{
+			
+			return( node_registry.pickBest( selection, SELECTION_CHOICES ));
+		}
+	}
+	
+		/**
+		 * Outcome of syncs by how the target was selected so scored selection can be compared against
+		 * uniform. Time to new messages is reported as the call time spent per message received
+		 */
+	
+	private static class
+	SelectionStats
+	{
+		private long	syncs;
+		private long	fails;
+		private long	received;
+		private long	call_time;
+		
+		private synchronized void
+		syncOK(
+			long		time,
+			int			num )
+		{
+			syncs++;
+			
+			call_time	+= time;
+			received	+= num;
+		}
 		
-		nodes.addAll( nodes1 );
-		nodes.addAll( nodes2 );
+		private synchronized void
+		syncFailed()
+		{
+			syncs++;
+			fails++;
+		}
 		
-		return( getRandomSyncNode( nodes ));
+		private synchronized String
+		getString()
+		{
+			return( "syncs=" + syncs + ", fails=" + fails + ", received=" + received + 
+					", avg call=" + (syncs==fails?0:call_time/(syncs-fails)) + "ms, ms/msg=" + (received==0?"-":String.valueOf(call_time/received)));
+		}
 	}
 	
-	private MsgSyncNode
-	getRandomSyncNode(
-		List<MsgSyncNode>		nodes )
+		/**
+		 * Syncs sent to different nodes with the same bloom, only the first reply matters
+		 */
+	
+	private class
+	SyncRound
 	{
-		int	num = nodes.size();
+		private boolean		replied;
+		private boolean		hedges_launched;
+		private TimerEvent	hedge_event;
 		
-		if ( num == 0 ){
-			
-			return( null );
-					
-		}else{
-			
-			long	now = SystemTime.getMonotonousTime();
-			
-			Map<String,Object>	map = new HashMap<String, Object>(num*2);
-			
-			for ( MsgSyncNode node: nodes ){
+		private synchronized boolean
+		hasReply()
+		{
+			return( replied );
+		}
+		
+		private synchronized void
+		scheduleHedge()
+		{
+			if ( replied || hedges_launched ){
 				
-				String str = node.getContactAddress();
+				return;
+			}
+			
+			hedge_event = 
+				SimpleTimer.addEvent(
+					"MsgSync:hedge",
+					SystemTime.getOffsetTime( FANOUT_HEDGE_DELAY ),
+					new TimerEventPerformer()
+					{
+						@Override
+						public void 
+						perform(
+							TimerEvent event ) 
+						{
+							launchHedges();
+						}
+					});
+		}
+		
+		private void
+		launchHedges()
+		{
+			synchronized( this ){
 				
-				/* removed as didn't help the unreliability situation
-				if ( is_anonymous_chat ){
+				if ( replied || hedges_launched ){
 					
-					// rate limit these addresses globally to reduce tunnel load, especially
-					// when running private chats on an already small chat.
-				
-					synchronized( anon_dest_use_map ){
-						
-						Long	last = anon_dest_use_map.get( str );
-						
-						if ( last != null && now - last < ANON_DEST_USE_MIN_TIME ){
-												
-							continue;
-						}						
-					}
+					return;
 				}
-				*/
 				
-				Object x = map.get( str );
+				hedges_launched = true;
 				
-				if ( x == null ){
-					
-					map.put( str, node );
-					
-				}else if ( x instanceof MsgSyncNode ){
-					
-					List<MsgSyncNode> list = new ArrayList<MsgSyncNode>(10);
-					
-					list.add((MsgSyncNode)x);
-					list.add( node );
-					
-					map.put( str, list );
+				if ( hedge_event != null ){
 					
-				}else{
+					hedge_event.cancel();
 					
-					((List<MsgSyncNode>)x).add( node );
+					hedge_event = null;
 				}
 			}
 			
-			if ( map.size() == 0 ){
-				
-				return( null );
-			}
-			
-			int	index = RandomUtils.nextInt( map.size());
-			
-			Iterator<Object>	it = map.values().iterator();
-			
-			for ( int i=0;i<index;i++){
+			fanOut( this );
+		}
+		
+			/**
+			 * Don't hang around for the hedge delay once something has failed
+			 */
+		
+		private void
+		memberFailed()
+		{
+			launchHedges();
+		}
+		
+			/**
+			 * @return true if this is the first reply for the round
+			 */
+		
+		private synchronized boolean
+		replyReceived()
+		{
+			if ( replied ){
 				
-				it.next();
+				return( false );
 			}
 			
-			Object result = it.next();
-			
-			MsgSyncNode sync_node;
+			replied = true;
 			
-			if ( result instanceof MsgSyncNode ){
-				
-				sync_node = (MsgSyncNode)result;
-				
-			}else{
-				
-				List<MsgSyncNode>	list = (List<MsgSyncNode>)result;
+			if ( !hedges_launched ){
 				
-				sync_node = list.get( RandomUtils.nextInt( list.size()));
+				fanout_cancelled++;
 			}
 			
-			/*
-			if ( is_anonymous_chat ){
+			if ( hedge_event != null ){
 				
-				synchronized( anon_dest_use_map ){
+				hedge_event.cancel();
 				
-					String str = sync_node.getContactAddress();
-										
-					anon_dest_use_map.put( str, now );
-				}
+				hedge_event = null;
 			}
-			*/
 			
-			return( sync_node );
+			return( true );
 		}
 	}
 	
 	private class
 	BloomDetails
 	{
-		private final long				create_time = SystemTime.getMonotonousTime();
 		private final int				mutation_id;
+		private final int				generation;
 		private final byte[]			rand;
-		private final BloomFilter		bloom;
+		private final Map<String,Object>	bloom_map;
+		
+			// these three are added to by receivers as keys are learnt, concurrent syncs can share
+			// the same details so access them under the details' monitor
 		
 		private final ByteArrayHashMap<List<MsgSyncNode>>	msg_node_map;
 		
 		private final List<MsgSyncNode>	all_public_keys;
+		
+		private final ByteArrayHashMap<List<MsgSyncNode>>	fingerprint_map;
 
 		private final int				message_count;
 		private final int				new_message_count;
 		
 		private final long				oldest_message_timestamp;
 		
+		private final long[]			iblt_keys;
+		
+			// last time these were confirmed to reflect the current bloom
+		
+		private volatile long			validated_time;
+		
 		private
 		BloomDetails(
 			int									_mutation_id,
+			int									_generation,
 			byte[]								_rand,
-			BloomFilter							_bloom,
+			Map<String,Object>					_bloom_map,
 			ByteArrayHashMap<List<MsgSyncNode>>	_msg_node_map,
 			List<MsgSyncNode>					_all_public_keys,
+			ByteArrayHashMap<List<MsgSyncNode>>	_fingerprint_map,
 			int									_message_count,
 			int									_new_message_count,
-			long								_oldest_message_timestamp )
+			long								_oldest_message_timestamp,
+			long[]								_iblt_keys )
 		{
 			mutation_id					= _mutation_id;
+			generation					= _generation;
 			rand						= _rand;
-			bloom						= _bloom;
+			bloom_map					= _bloom_map;
 			msg_node_map				= _msg_node_map;
 			all_public_keys				= _all_public_keys;
+			fingerprint_map				= _fingerprint_map;
 			message_count				= _message_count;
 			new_message_count			= _new_message_count;
 			oldest_message_timestamp	= _oldest_message_timestamp;
+			iblt_keys					= _iblt_keys;
+		}
+	}
+	
+		/**
+		 * A version of the message set, never modified once published
+		 */
+	
+	private static class
+	MessageSnapshot
+	{
+		private final int					mutation_id;
+		private final MsgSyncMessage[]		messages;
+		private final MsgSyncSigIndex		tombstones;
+		
+		private
+		MessageSnapshot(
+			int						_mutation_id,
+			MsgSyncMessage[]		_messages,
+			MsgSyncSigIndex			_tombstones )
+		{
+			mutation_id		= _mutation_id;
+			messages		= _messages;
+			tombstones		= _tombstones;
 		}
 	}
 	
-	private BloomDetails	last_bloom_details;
+		// bloom details are reused without taking message_lock for this long if nothing has changed
+	
+	private static final int	BLOOM_DETAILS_REUSE_PERIOD	= 5*1000;
+	
+	private volatile BloomDetails	last_bloom_details;
+	
+	private static void
+	addToFingerprintMap(
+		ByteArrayHashMap<List<MsgSyncNode>>		fingerprint_map,
+		MsgSyncNode								node )
+	{
+		byte[] fp = node.getKeyFingerprint();
+		
+		if ( fp == null ){
+			
+			return;
+		}
+		
+		List<MsgSyncNode> list = fingerprint_map.get( fp );
+		
+		if ( list == null ){
+			
+			list = new ArrayList<MsgSyncNode>( 1 );
+			
+			fingerprint_map.put( fp, list );
+		}
+		
+		list.add( node );
+	}
 	
 	private BloomDetails
 	buildBloom()
 	{
+		long now = SystemTime.getMonotonousTime();
+
+		BloomDetails	current = last_bloom_details;
+		
+		if ( 	current != null &&
+				current.mutation_id == message_snapshot.mutation_id &&
+				now >= current.validated_time &&
+				now - current.validated_time < BLOOM_DETAILS_REUSE_PERIOD ){
+			
+			return( current );
+		}
+		
+		long	wait_start = System.nanoTime();
+		
 		synchronized( message_lock ){
 
+			lockAcquired( wait_start );
+			
+			if ( bloom_state.needsRebuild( now )){
+				
+				List<byte[]>	inv_sigs = new ArrayList<byte[]>( tombstone_sigs.size());
+				
+				for ( byte[] sig: tombstone_sigs.getSignatures()){
+					
+					inv_sigs.add( invert( sig ));
+				}
+				
+				bloom_state.rebuild( messages, inv_sigs, now );
+			}
+			
 			if ( 	last_bloom_details != null && 
 					last_bloom_details.mutation_id == message_mutation_id &&
-					SystemTime.getMonotonousTime() - last_bloom_details.create_time < 30*1000 ){
+					last_bloom_details.generation == bloom_state.getGeneration()){
+				
+				last_bloom_details.validated_time = now;
 				
 				return( last_bloom_details );
 			}
-						
-			byte[]		rand 	= new byte[8];
-			BloomFilter	bloom	= null;
 			
-			ByteArrayHashMap<List<MsgSyncNode>>	msg_node_map = null;
+				// the bloom itself is updated in place so we take a snapshot of its current state along
+				// with the node details for use by the sync that requested it
+			
+			ByteArrayHashMap<List<MsgSyncNode>>	msg_node_map = new ByteArrayHashMap<List<MsgSyncNode>>();
 			
 			List<MsgSyncNode>	all_public_keys = new ArrayList<MsgSyncNode>();
+			
+			ByteArrayHashMap<List<MsgSyncNode>>	fingerprint_map = new ByteArrayHashMap<List<MsgSyncNode>>();
 
-			int	message_count;
+			for ( MsgSyncNode n: bloom_state.getNodes()){
+				
+				byte[] nid = n.getUID();
+				
+				List<MsgSyncNode> list = msg_node_map.get( nid );
+				
+				if ( list == null ){
 					
-
-			message_count = messages.size();
+					list = new ArrayList<MsgSyncNode>();
+					
+					msg_node_map.put( nid, list );
+				}
+				
+				list.add( n );
+				
+				if ( n.getPublicKey() != null ){
+					
+					all_public_keys.add( n );
+					
+					addToFingerprintMap( fingerprint_map, n );
+				}
+			}
+			
+			int	message_count = messages.size();
 			
 			long oldest_timestamp;
 			
@@ -4157,137 +5039,481 @@ MsgSyncHandler
 				
 				oldest_timestamp = 0;
 			}
+
+			byte[] rand = bloom_state.getRand();
 			
-			for ( int i=0;i<64;i++){
-				
-				RandomUtils.nextSecureBytes( rand );
-				
-					// slight chance of duplicate keys (maybe two nodes share a public key due to a restart)
-					// so just use distinct ones
-				
-				ByteArrayHashMap<String>	bloom_keys = new ByteArrayHashMap<String>();
-				
-				Set<MsgSyncNode>	done_nodes = new HashSet<MsgSyncNode>();
-				
-				msg_node_map = new ByteArrayHashMap<List<MsgSyncNode>>();
-					
-				for ( MsgSyncMessage msg: messages ){
-					
-					MsgSyncNode n = msg.getNode();
-					
-					if ( !done_nodes.contains( n )){
-						
-						byte[] nid = n.getUID();
-						
-						List<MsgSyncNode> list = msg_node_map.get( nid );
-						
-						if ( list == null ){
-							
-							list = new ArrayList<MsgSyncNode>();
-							
-							msg_node_map.put( nid, list );
-						}
-						
-						list.add( n );
-						
-						done_nodes.add( n );
-						
-						byte[] pub = n.getPublicKey();
-						
-						if ( pub != null ){
-						
-							if ( i == 0 ){
-								
-								all_public_keys.add( n );
-							}
-							
-							try{
-								byte[] ad = n.getContactAddress().getBytes( "UTF-8" );
-								
-								byte[] pk_ad = new byte[pub.length + ad.length];
-								
-								System.arraycopy( pub, 0, pk_ad, 0, pub.length );
-								System.arraycopy( ad, 0, pk_ad, pub.length, ad.length );
-								
-								for ( int j=0;j<rand.length;j++){
-									
-									pk_ad[j] ^= rand[j];
-								}
-								
-								bloom_keys.put( pk_ad, "" );
-								
-							}catch( Throwable e ){
-								
-								Debug.out( e );
-							}
-						}
-					}
-					
-					byte[]	sig = msg.getSignature().clone();
+			BloomDetails details = 
+				new BloomDetails( 
+					message_mutation_id, bloom_state.getGeneration(), rand, bloom_state.serialiseBloom(), 
+					msg_node_map, all_public_keys, fingerprint_map, message_count, message_new_count, oldest_timestamp,
+					getIBLTKeys( message_snapshot, MsgSyncIBLT.getSeed( rand )));
+			
+			details.validated_time = now;
+			
+			last_bloom_details = details;
+			
+			return( details );
+		}	
+	}
+	
+		/**
+		 * Distinct fingerprints of much the same keys that go into the sync bloom - message signatures,
+		 * deleted message inverted signatures and originator public keys. Unlike the bloom the node
+		 * keys leave out the address as peers can see different addresses for the same node, which
+		 * would bloat the difference for no benefit
+		 */
+	
+	private static long[]
+	getIBLTKeys(
+		MessageSnapshot		snapshot,
+		long				seed )
+	{
+		Set<Long>	keys = new HashSet<Long>( snapshot.messages.length*2 + snapshot.tombstones.size());
 		
-					for ( int j=0;j<rand.length;j++){
-						
-						sig[j] ^= rand[j];
-					}
-					
-					bloom_keys.put( sig, ""  );
-				}
-				
-				for ( HashWrapper hw: deleted_messages_inverted_sigs_map.keySet()){
-					
-					byte[] inv_sig = hw.getBytes().clone();
-					
-					for ( int j=0;j<rand.length;j++){
-						
-						inv_sig[j] ^= rand[j];
-					}
-
-					bloom_keys.put( inv_sig, ""  );
-				}
+		Set<MsgSyncNode>	done_nodes = new HashSet<MsgSyncNode>();
+		
+		for ( MsgSyncMessage msg: snapshot.messages ){
+			
+			keys.add( MsgSyncIBLT.fingerprint( msg.getSignature(), seed, false ));
+			
+			MsgSyncNode node = msg.getNode();
+			
+			if ( done_nodes.add( node )){
 				
-					// in theory we could have 64 sigs + 64 pks -> 128 -> 1280 bits -> 160 bytes + overhead
+				byte[] pk = node.getPublicKey();
 				
-				int	bloom_bits = bloom_keys.size() * 10 + RandomUtils.nextInt( 19 );
+				if ( pk != null ){
 					
-				if ( bloom_bits < MIN_BLOOM_BITS ){
-				
-					bloom_bits = MIN_BLOOM_BITS;
-				}
-				
-				bloom = BloomFilterFactory.createAddOnly( bloom_bits );
-				
-				for ( byte[] k: bloom_keys.keys()){
-					
-					if ( bloom.contains( k )){
-						
-						bloom = null;
-						
-						break;
-						
-					}else{
-						
-						bloom.add( k );
-					}
+					keys.add( MsgSyncIBLT.fingerprint( pk, seed, false ));
 				}
+			}
+		}
+		
+		for ( byte[] sig: snapshot.tombstones.getSignatures()){
+			
+			keys.add( MsgSyncIBLT.fingerprint( sig, seed, true ));
+		}
+		
+		long[]	result = new long[keys.size()];
+		
+		int	pos = 0;
+		
+		for ( Long k: keys ){
+			
+			result[pos++] = k;
+		}
+		
+		return( result );
+	}
+	
+		/**
+		 * Answers the responder's questions about what the requester has, either from their bloom or 
+		 * from the decoded difference of their IBLT and ours
+		 */
+	
+	private interface
+	SyncProbe
+	{
+		public boolean
+		hasMessage(
+			byte[]		signature );
+		
+		public boolean
+		hasDeleted(
+			byte[]		signature );
+		
+		public boolean
+		hasNodeKey(
+			MsgSyncNode		node );
+		
+			/**
+			 * For messages we only hold in the cold tier and so aren't part of our own bloom/IBLT set
+			 * @param we_have_tombstone whether our set contains the message's tombstone
+			 * @return true if they have the message or its tombstone
+			 */
+		
+		public boolean
+		hasColdMessage(
+			byte[]		signature,
+			boolean		we_have_tombstone );
+	}
+	
+		/**
+		 * The bloom only accepts whole keys so rather than allocating two modified copies of every
+		 * signature per request we transform into scratch buffers that are reused across calls. Not
+		 * thread safe, a probe is only ever used by the request that created it
+		 */
+	
+	private static class
+	BloomSyncProbe
+		implements SyncProbe
+	{
+		private final BloomFilter	bloom;
+		private final byte[]		rand;
+		
+			// scratch buffers indexed by length. DER encoded signatures vary by a few bytes (around
+			// 70-72) and node keys include the contact address, while the bloom only accepts whole
+			// arrays so a buffer can't just be sized to the maximum
+		
+		private byte[][]	buffers = new byte[80][];
+		
+		private
+		BloomSyncProbe(
+			BloomFilter		_bloom,
+			byte[]			_rand )
+		{
+			bloom	= _bloom;
+			rand	= _rand;
+		}
+		
+		@Override
+		public boolean
+		hasMessage(
+			byte[]		signature )
+		{
+			return( bloom.contains( getKey( signature, false )));
+		}
+		
+		@Override
+		public boolean
+		hasDeleted(
+			byte[]		signature )
+		{
+			return( bloom.contains( getKey( signature, true )));
+		}
+		
+		@Override
+		public boolean
+		hasNodeKey(
+			MsgSyncNode		node )
+		{
+			byte[] node_key = node.getBloomKey();
+			
+			return( node_key != null && bloom.contains( getKey( node_key, false )));
+		}
+		
+		@Override
+		public boolean
+		hasColdMessage(
+			byte[]		signature,
+			boolean		we_have_tombstone )
+		{
+			return( hasMessage( signature ) || hasDeleted( signature ));
+		}
+		
+			/**
+			 * @return the scratch buffer for the key's length holding key ^ rand (optionally inverted)
+			 */
+		
+		private byte[]
+		getKey(
+			byte[]		key,
+			boolean		invert )
+		{
+			int	len = key.length;
+			
+			if ( len >= buffers.length ){
 				
-				if ( bloom != null ){
-					
-					break;
-				}
-			}		
+				buffers = Arrays.copyOf( buffers, Math.max( len + 1, buffers.length*2 ));
+			}
+			
+			byte[] buffer = buffers[len];
+			
+			if ( buffer == null ){
+				
+				buffer = buffers[len] = new byte[len];
+			}
+			
+			int	x = invert?0xff:0x00;
+			
+			int	rand_len = Math.min( rand.length, len );
+			
+			for ( int i=0;i<rand_len;i++){
+				
+				buffer[i] = (byte)( key[i] ^ rand[i] ^ x );
+			}
+			
+			for ( int i=rand_len;i<len;i++){
+				
+				buffer[i] = (byte)( key[i] ^ x );
+			}
+			
+			return( buffer );
+		}
+	}
+	
+	private static class
+	IBLTSyncProbe
+		implements SyncProbe
+	{
+		private final long			seed;
+		
+			// keys only we have and keys only they have
+		
+		private final Set<Long>		local_only;
+		private final Set<Long>		remote_only;
+		
+		private
+		IBLTSyncProbe(
+			long			_seed,
+			Set<Long>		_local_only,
+			Set<Long>		_remote_only )
+		{
+			seed		= _seed;
+			local_only	= _local_only;
+			remote_only	= _remote_only;
+		}
+		
+		@Override
+		public boolean
+		hasMessage(
+			byte[]		signature )
+		{
+			return( !local_only.contains( MsgSyncIBLT.fingerprint( signature, seed, false )));
+		}
+		
+		@Override
+		public boolean
+		hasDeleted(
+			byte[]		signature )
+		{
+			return( remote_only.contains( MsgSyncIBLT.fingerprint( signature, seed, true )));
+		}
+		
+		@Override
+		public boolean
+		hasNodeKey(
+			MsgSyncNode		node )
+		{
+			byte[] pk = node.getPublicKey();
+			
+			return( pk != null && !local_only.contains( MsgSyncIBLT.fingerprint( pk, seed, false )));
+		}
+		
+		@Override
+		public boolean
+		hasColdMessage(
+			byte[]		signature,
+			boolean		we_have_tombstone )
+		{
+				// the message itself isn't in our set so is only in the difference if they have it
+			
+			if ( remote_only.contains( MsgSyncIBLT.fingerprint( signature, seed, false ))){
+				
+				return( true );
+			}
+			
+			long	inv_key = MsgSyncIBLT.fingerprint( signature, seed, true );
+			
+			if ( we_have_tombstone ){
+				
+				return( !local_only.contains( inv_key ));
+				
+			}else{
+				
+				return( remote_only.contains( inv_key ));
+			}
+		}
+		
+		private int
+		getDifference()
+		{
+			return( local_only.size() + remote_only.size());
+		}
+	}
+	
+		/**
+		 * @return null if the difference is too large for the table to decode
+		 */
+	
+	private IBLTSyncProbe
+	createIBLTProbe(
+		MessageSnapshot		snapshot,
+		MsgSyncIBLT			remote,
+		byte[]				rand )
+	{
+		long seed = MsgSyncIBLT.getSeed( rand );
+		
+		MsgSyncIBLT local = new MsgSyncIBLT( remote.getCellCount());
+		
+		for ( long k: getIBLTKeys( snapshot, seed )){
+			
+			local.add( k );
+		}
+		
+		Set<Long>	remote_only = new HashSet<Long>();
+		Set<Long>	local_only	= new HashSet<Long>();
+		
+		if ( remote.subtract( local ) && remote.decode( remote_only, local_only )){
+			
+			iblt_ok++;
+			
+			return( new IBLTSyncProbe( seed, local_only, remote_only ));
+		}
+		
+		iblt_fail++;
+		
+		return( null );
+	}
+
+		/**
+		 * Their sync set only covers their in-memory window and recent tombstones, so the probe can't
+		 * tell us about their cold messages - they instead tell us how far back their cold tier goes
+		 * and we only offer messages older than that
+		 * @param before timestamp of the oldest cold message they have, 0 if they have none
+		 * @param room how many more cold messages they have room for
+		 */
+	
+	private void
+	getColdMissing(
+		MsgSyncColdStore				cs,
+		MessageSnapshot					snapshot,
+		SyncProbe						probe,
+		long							before,
+		int								room,
+		List<MsgSyncColdStore.Entry>	result )
+	{
+		List<MsgSyncColdStore.Entry> entries = cs.getEntries( before, room );
+		
+		int	num = entries.size();
+		
+		for ( int i=0;i<num && result.size() < MAX_COLD_REPLY_MESSAGES;i++){
+			
+			MsgSyncColdStore.Entry entry = entries.get( i );
+			
+			boolean we_have_tombstone = snapshot.tombstones.contains( entry.signature );
+			
+			if ( !probe.hasColdMessage( entry.signature, we_have_tombstone )){
+				
+				result.add( entry );
+			}
+		}
+	}
+	
+	private HashWrapper
+	getProbeCacheKey(
+		byte[]					iblt_bytes,
+		Map<String,Object>		bloom_map,
+		byte[]					rand )
+	
+		throws IOException
+	{
+		byte[]	content = iblt_bytes!=null?iblt_bytes:BEncoder.encode( bloom_map );
+		
+		byte[]	temp = new byte[ content.length + rand.length + 1 ];
+		
+		temp[0] = (byte)(iblt_bytes!=null?1:0);
+		
+		System.arraycopy( content, 0, temp, 1, content.length );
+		System.arraycopy( rand, 0, temp, 1 + content.length, rand.length );
+		
+		return( new HashWrapper( new SHA1Simple().calculateHash( temp )));
+	}
+	
+	private ProbeCacheEntry
+	createProbeCacheEntry(
+		MessageSnapshot			snapshot,
+		byte[]					iblt_bytes,
+		Map<String,Object>		bloom_map,
+		byte[]					rand )
+	
+		throws Exception
+	{
+		BloomFilter		bloom;
+		IBLTSyncProbe	iblt_probe;
+		SyncProbe		probe;
 		
-			if ( bloom == null ){
+		if ( iblt_bytes != null ){
+			
+			bloom 		= null;
+			iblt_probe	= createIBLTProbe( snapshot, new MsgSyncIBLT( iblt_bytes ), rand );
+			probe		= iblt_probe;
+			
+		}else{
+			
+			bloom		= BloomFilterFactory.deserialiseFromMap( bloom_map );
+			iblt_probe	= null;
+			probe		= new BloomSyncProbe( bloom, rand );
+		}
+		
+		List<MsgSyncMessage>	both_have	= new ArrayList<MsgSyncMessage>();
+		List<MsgSyncMessage>	they_lack	= new ArrayList<MsgSyncMessage>();
+		
+		int	they_deleted = 0;
+		
+		if ( probe != null ){
+			
+			for ( MsgSyncMessage msg: snapshot.messages ){
+				
+				byte[]	sig = msg.getSignature();
 				
-				if ( Constants.isCVSVersion()){
+				if ( probe.hasMessage( sig )){
+		
+					both_have.add( msg );
+					
+				}else if ( probe.hasDeleted( sig )){
 					
-					Debug.out( "Bloom construction failed" );
+					they_deleted++;
+					
+				}else{
+					
+					they_lack.add( msg );
 				}
 			}
+		}
+		
+		return( new ProbeCacheEntry( snapshot.mutation_id, bloom, iblt_probe, both_have, they_lack, they_deleted ));
+	}
+	
+		/**
+		 * Result of checking our messages against a request's bloom/IBLT, valid while our
+		 * messages remain unchanged
+		 */
+	
+	private static class
+	ProbeCacheEntry
+	{
+		private final int						mutation_id;
+		private final BloomFilter				bloom;
+		private final IBLTSyncProbe				iblt_probe;
+		private final List<MsgSyncMessage>		both_have;
+		private final List<MsgSyncMessage>		they_lack;
+		private final int						they_deleted_count;
+		
+		private
+		ProbeCacheEntry(
+			int						_mutation_id,
+			BloomFilter				_bloom,
+			IBLTSyncProbe			_iblt_probe,
+			List<MsgSyncMessage>	_both_have,
+			List<MsgSyncMessage>	_they_lack,
+			int						_they_deleted_count )
+		{
+			mutation_id			= _mutation_id;
+			bloom				= _bloom;
+			iblt_probe			= _iblt_probe;
+			both_have			= _both_have;
+			they_lack			= _they_lack;
+			they_deleted_count	= _they_deleted_count;
+		}
+		
+			/**
+			 * @return a probe for use by a single request, null if the IBLT couldn't be decoded
+			 */
+		
+		private SyncProbe
+		getProbe(
+			byte[]		rand )
+		{
+				// bloom probes aren't thread safe so each request gets its own
 			
-			last_bloom_details = new BloomDetails( message_mutation_id, rand, bloom, msg_node_map, all_public_keys, message_count, message_new_count, oldest_timestamp );
+			if ( bloom != null ){
+				
+				return( new BloomSyncProbe( bloom, rand ));
+			}
 			
-			return( last_bloom_details );
-		}	
+			return( iblt_probe );
+		}
 	}
 	
 	private int
@@ -4296,32 +5522,127 @@ MsgSyncHandler
 		BloomDetails					bloom_details,
 		List<Map<String,Object>>		list )
 	{
-			// prevent multiple concurrent replies using a cached bloom filter state from
-			// interfering with one another during message extraction
+		MessageReceiver	receiver = new MessageReceiver( originator, bloom_details );
 		
-		byte[]	originator_key = null;
+		for ( Map<String,Object> m: list ){
+			
+			receiver.receive( m );
+		}
 		
-		int	total_received = 0;
-					
-		ByteArrayHashMap<List<MsgSyncNode>>	msg_node_map = bloom_details.msg_node_map;
+		receiver.complete();
 		
-		List<MsgSyncNode>	all_public_keys = bloom_details.all_public_keys;
-			
-			// don't bother with this until its a busy channel
+		return( receiver.getReceivedCount());
+	}
+	
+	private static final ThreadPool<AERunnable>	verify_pool = 
+		new ThreadPool<>( "MsgSyncHandler:verify", Math.max( 1, Runtime.getRuntime().availableProcessors()), true );
+	
+	private static boolean
+	verifySignature(
+		PublicKey	public_key,
+		byte[]		node_uid,
+		byte[]		message_id,
+		byte[]		content,
+		byte[]		control,
+		byte[]		signature )
+	
+		throws Exception
+	{
+		Signature sig = MsgSyncKeyCache.getVerifier( public_key );
 		
-		boolean	record_history = bloom_details.new_message_count > MAX_MESSAGES;
-
-		for ( Map<String,Object> m: list ){
+		sig.update( node_uid );
+		sig.update( message_id );
+		sig.update( content );
+		
+		if ( control != null ){
+			sig.update( control );
+		}
+		
+		return( sig.verify( signature ));
+	}
+	
+		/**
+		 * Verifies and adds the messages of a single sync reply (or push) as they are handed to it.
+		 * Signature checks are farmed out to the verify pool, messages are then added in the order
+		 * received as their verification completes. complete() must be called once all messages have
+		 * been handed over
+		 */
+	
+	private class
+	MessageReceiver
+		implements MsgSyncReplyDecoder.MessageListener
+	{
+		private final MsgSyncNode							originator;
+		private final BloomDetails							bloom_details;
+		private final ByteArrayHashMap<List<MsgSyncNode>>	msg_node_map;
+		private final List<MsgSyncNode>						all_public_keys;
+		private final ByteArrayHashMap<List<MsgSyncNode>>	fingerprint_map;
+		
+		private final boolean	record_history;
+		
+		private byte[]	originator_key;
+		
+		private byte[]	in_flight;
+		
+		private byte[]	owner_fingerprint;
+		
+		private final LinkedList<ReceivedMessage>	pending = new LinkedList<ReceivedMessage>();
+		
+		private int		total_received;
+		
+		private
+		MessageReceiver(
+			MsgSyncNode		_originator,
+			BloomDetails	_bloom_details )
+		{
+			originator		= _originator;
+			bloom_details	= _bloom_details;
+			msg_node_map	= bloom_details.msg_node_map;
+			all_public_keys	= bloom_details.all_public_keys;
+			fingerprint_map	= bloom_details.fingerprint_map;
+			
+				// don't bother with this until its a busy channel
 			
+			record_history = bloom_details.new_message_count > MAX_MESSAGES;
+		}
+		
+		@Override
+		public void
+		messageDecoded(
+			Map<String,Object>		message )
+		{
+			receive( message );
+		}
+		
+		private int
+		getReceivedCount()
+		{
+			return( total_received );
+		}
+		
+		private void
+		receive(
+			Map<String,Object>		m )
+		{
 			try{
-				Set<MsgSyncNode>		keys_to_try = null;
-				
 				byte[] node_uid		= (byte[])m.get( "u" );
-				byte[] message_id 	= (byte[])m.get( "i" );
-				byte[] content		= (byte[])m.get( "c" );
-				byte[] control 		= (byte[])m.get( "$" );
-				byte[] signature	= (byte[])m.get( "s" );
 				byte[] old_history	= (byte[])m.get( "h" );
+				
+				if ( isNonOwnerMessage( m )){
+					
+					ro_pre_verify_rejects++;
+					
+					applyVerified( false );
+					
+					return;
+				}
+				
+				if ( !preVerifyCheck( m )){
+					
+					applyVerified( false );
+					
+					return;
+				}
 									
 				byte[] new_history;
 				
@@ -4372,181 +5693,618 @@ MsgSyncHandler
 					new_history = old_history;
 				}
 				
-				int	age = ((Number)m.get( "a" )).intValue();
-						
-					// these won't be present if remote believes we already have it (subject to occasional bloom false positives)
-				
-				byte[] 	public_key		= (byte[])m.get( "p" );
+					// candidate keys: first any we already have for the node-id, then if the message doesn't
+					// come with a public key, any other key we know as it could be registered against 
+					// another node-id (in which case the other side won't have returned it to us)
 				
-				Map<String,Object>		contact_map		= (Map<String,Object>)m.get( "k" );
-												
-					//log( "Message: " + ByteFormatter.encodeString( message_id ) + ": " + new String( content ) + ", age=" + age );
-												
-				boolean handled 	= false;
-				boolean	new_message	= false;
+				List<MsgSyncNode>	candidates = new ArrayList<MsgSyncNode>();
 				
-					// see if we already have a node with the correct public key
+				int		uid_candidates;
+				int		known_key_count;
 				
-				List<MsgSyncNode> nodes = msg_node_map.get( node_uid );
+				byte[] 	public_key		= (byte[])m.get( "p" );
 				
-				if ( nodes != null ){
+				synchronized( bloom_details ){
 					
-					for ( MsgSyncNode node: nodes ){
-						
-						byte[] pk = node.getPublicKey();
+					List<MsgSyncNode> nodes = msg_node_map.get( node_uid );
+					
+					if ( nodes != null ){
 						
-						if ( pk != null ){
-							
-							if ( keys_to_try == null ){
-								
-								keys_to_try = new HashSet<MsgSyncNode>( all_public_keys );
-							}
-							
-							keys_to_try.remove( node );
-							
-							Signature sig = CryptoECCUtils.getSignature( CryptoECCUtils.rawdataToPubkey( pk ));
-							
-							sig.update( node_uid );
-							sig.update( message_id );
-							sig.update( content );
-							
-							if ( control != null ){
-								sig.update( control );
-							}
+						for ( MsgSyncNode node: nodes ){
 							
-							if ( sig.verify( signature )){
-																	
-								new_message = addMessage( node, message_id, content, control, signature, age, new_history, contact_map, MS_INCOMING );
+							if ( node.getPublicKey() != null ){
 								
-								handled = true;
-								
-								break;
+								candidates.add( node );
 							}
 						}
 					}
-				}
 					
-				if ( !handled ){
+					uid_candidates = candidates.size();
 					
 					if ( public_key == null ){
 						
-							// the required public key could be registered against another node-id
-							// in this case the other side won't have returned it to us but we won't
-							// find it under the existing set of keys associated with the node-id
+							// newer responders tell us the key's fingerprint so we don't have to try them all
 						
-						if ( keys_to_try == null ){
-							
-							keys_to_try = new HashSet<MsgSyncNode>( all_public_keys );
-						}
+						byte[]	fingerprint = (byte[])m.get( "f" );
+						
+						Collection<MsgSyncNode>	others;
 						
-						for ( MsgSyncNode n: keys_to_try ){
+						if ( fingerprint != null ){
 							
-							byte[] pk = n.getPublicKey();
+							others = fingerprint_map.get( fingerprint );
 							
-							Signature sig = CryptoECCUtils.getSignature( CryptoECCUtils.rawdataToPubkey( pk));
+							if ( others == null ){
+								
+								others = Collections.emptyList();
+							}
 							
-							sig.update( node_uid );
-							sig.update( message_id );
-							sig.update( content );
+							fingerprint_hints++;
 							
-							if ( control != null ){
-								sig.update( control );
-							}
+						}else{
 							
-							if ( sig.verify( signature )){
-																		
-									// dunno if the contact has changed so all we can do is use the existing
-									// one associated with this key
-								
-								MsgSyncNode msg_node = addNode( n.getContact(), node_uid, pk );
-								
-								new_message = addMessage( msg_node, message_id, content, control, signature, age, new_history, contact_map, MS_INCOMING );
+							others = all_public_keys;
+						}
+						
+						Set<MsgSyncNode> keys_to_try = new LinkedHashSet<MsgSyncNode>( others );
+						
+						keys_to_try.removeAll( candidates );
+						
+						candidates.addAll( keys_to_try );
+					}
+					
+					known_key_count = all_public_keys.size();
+				}
+				
+				if ( managing_ro ){
+					
+						// only the owner's key is of any use
+					
+					List<MsgSyncNode>	owner_candidates = new ArrayList<MsgSyncNode>( 1 );
+					
+					int	owner_uid_candidates = 0;
+					
+					for ( int i=0;i<candidates.size();i++){
+						
+						MsgSyncNode node = candidates.get( i );
+						
+						if ( isOwnerKey( node.getPublicKey())){
 							
-								handled = true;
-																
-								break;
+							owner_candidates.add( node );
+							
+							if ( i < uid_candidates ){
+								
+								owner_uid_candidates++;
 							}
 						}
-					}else{
+					}
+					
+					candidates		= owner_candidates;
+					uid_candidates	= owner_uid_candidates;
+				}
+				
+				final ReceivedMessage	rm = new ReceivedMessage( m, new_history, candidates, uid_candidates, known_key_count );
+				
+				pending.add( rm );
+				
+				in_flight = null;	// now owned by the pending message
+				
+				verify_pool.runTask(
+					new AERunnable()
+					{
+						@Override
+						public void
+						runSupport()
+						{
+							rm.verify();
+						}
+					});
+			}catch( Throwable e ){
+				
+				Debug.out( e );
+			}
+			
+			if ( in_flight != null ){
+				
+				releaseInFlight( in_flight );
+				
+				in_flight = null;
+			}
+			
+				// get things out to listeners as soon as we can
+			
+			applyVerified( false );
+		}
+		
+		private boolean
+		isOwnerKey(
+			byte[]		pk )
+		{
+			return( Arrays.equals( pk, managing_pk ));
+		}
+		
+			/**
+			 * In read-only managed channels everything not authored by the owner is dropped by addMessage
+			 * so weed out what we can before doing any crypto
+			 */
+		
+		private boolean
+		isNonOwnerMessage(
+			Map<String,Object>		m )
+		{
+			if ( !managing_ro ){
+				
+				return( false );
+			}
+			
+			byte[] owner_pk = managing_pk;
+			
+			if ( owner_pk == null ){
+				
+				return( false );
+			}
+			
+			byte[] public_key = (byte[])m.get( "p" );
+			
+			if ( public_key != null ){
+				
+				return( !Arrays.equals( public_key, owner_pk ));
+			}
+			
+			byte[] fingerprint = (byte[])m.get( "f" );
+			
+			if ( fingerprint != null ){
+				
+				if ( owner_fingerprint == null ){
+					
+					owner_fingerprint = MsgSyncKeyCache.getFingerprint( owner_pk );
+				}
+				
+				return( !Arrays.equals( fingerprint, owner_fingerprint ));
+			}
+			
+			return( false );
+		}
+		
+			/**
+			 * Cheap checks to avoid verifying messages we already have, are being verified by another 
+			 * sync or are known to be bad
+			 * @return true if the message should be verified 
+			 */
+		
+		private boolean
+		preVerifyCheck(
+			Map<String,Object>		m )
+		{
+			byte[] signature = (byte[])m.get( "s" );
+			
+			if ( signature == null ){
+				
+				return( true );		// let it fail the usual way
+			}
+			
+			long	wait_start = System.nanoTime();
+			
+			synchronized( message_lock ){
+				
+				lockAcquired( wait_start );
+				
+				if ( 	message_sigs.contains( signature ) ||
+						tombstone_sigs.contains( signature ) ||
+						( cold_store != null && cold_store.contains( signature ))){
+					
+					pre_verify_dupes++;
+					
+					return( false );
+				}
+			}
+			
+			if ( m.get( "p" ) != null ){
+				
+				HashWrapper bad_key = getBadMessageKey( m );
+				
+				synchronized( bad_message_cache ){
+					
+					if ( bad_message_cache.containsKey( bad_key )){
 						
-							// no existing pk - we HAVE to record this message against
-							// this supplied pk otherwise we can't replicate it later
-
-						Signature sig = CryptoECCUtils.getSignature( CryptoECCUtils.rawdataToPubkey( public_key ));
+						pre_verify_bad++;
 						
-						sig.update( node_uid );
-						sig.update( message_id );
-						sig.update( content );
+						return( false );
+					}
+				}
+			}
+			
+			synchronized( in_flight_sigs ){
+				
+				if ( in_flight_sigs.containsKey( signature )){
+					
+					pre_verify_in_flight++;
+					
+					return( false );
+				}
+				
+				in_flight_sigs.put( signature, "" );
+			}
+			
+			in_flight = signature;
+			
+			return( true );
+		}
+		
+		private void
+		complete()
+		{
+			applyVerified( true );
+		}
+		
+		private void
+		applyVerified(
+			boolean		wait )
+		{
+			while( !pending.isEmpty()){
+				
+				ReceivedMessage rm = pending.getFirst();
+				
+				if ( wait ){
+					
+					rm.waitForVerify();
+					
+				}else if ( !rm.isVerified()){
+					
+					break;
+				}
+				
+				pending.removeFirst();
+				
+				try{
+					if ( apply( rm )){
 						
-						if ( control != null ){
-							sig.update( control );
-						}
+						total_received++;
+					}
+				}catch( Throwable e ){
+					
+					Debug.out( e );
+					
+				}finally{
+					
+					releaseInFlight( rm.signature );
+				}
+			}
+		}
+		
+		private boolean
+		apply(
+			ReceivedMessage		rm )
+		
+			throws Exception
+		{
+			MsgSyncNode	verified = rm.verified_node;
+			
+			List<MsgSyncNode>	new_keys = null;
+			
+			if ( verified == null && rm.public_key == null ){
+				
+				synchronized( bloom_details ){
+					
+					if ( all_public_keys.size() > rm.known_key_count ){
 						
-						if ( sig.verify( signature )){
-																
-							DHTPluginContact contact = dht.importContact( contact_map );
+						new_keys = new ArrayList<MsgSyncNode>( all_public_keys.subList( rm.known_key_count, all_public_keys.size()));
+					}
+				}
+			}
+			
+			if ( new_keys != null ){
+				
+					// keys supplied by earlier messages in this reply (or a concurrent sync sharing
+					// the bloom details) weren't around when this one was dispatched for verification
+				
+				byte[]	fingerprint = (byte[])rm.message.get( "f" );
+				
+				for ( MsgSyncNode n: new_keys ){
+					
+					if ( fingerprint != null && !Arrays.equals( fingerprint, n.getKeyFingerprint())){
+						
+						continue;
+					}
+					
+					if ( managing_ro && !isOwnerKey( n.getPublicKey())){
+						
+						continue;
+					}
+					
+					if ( rm.verify( n )){
+						
+						verified = n;
+						
+						rm.verified_index = Integer.MAX_VALUE;
+						
+						break;
+					}
+				}
+			}
+			
+			if ( verified != null ){
+				
+				if ( rm.verified_index < rm.uid_candidates ){
+																		
+					return( addMessage( verified, rm.message_id, rm.content, rm.control, rm.signature, rm.age, rm.history, rm.contact_map, MS_INCOMING ));
+					
+				}else{
+					
+						// dunno if the contact has changed so all we can do is use the existing
+						// one associated with this key
+				
+					MsgSyncNode msg_node = addNode( verified.getContact(), rm.node_uid, verified.getPublicKey());
+					
+					return( addMessage( msg_node, rm.message_id, rm.content, rm.control, rm.signature, rm.age, rm.history, rm.contact_map, MS_INCOMING ));
+				}
+			}
+			
+			if ( rm.public_key != null && rm.public_key_verified ){
+				
+					// no existing pk - we HAVE to record this message against
+					// this supplied pk otherwise we can't replicate it later
+				
+				DHTPluginContact contact = importContact( rm.contact_map );
+				
+					// really can't do anything if contact deserialiseation fails
+				
+				if ( contact != null ){
+					
+					MsgSyncNode msg_node = null;
+					
+					List<MsgSyncNode> nodes;
+					
+					synchronized( bloom_details ){
+						
+						nodes = msg_node_map.get( rm.node_uid );
+						
+						if ( nodes != null ){
 							
-								// really can't do anything if contact deserialiseation fails
+							nodes = new ArrayList<MsgSyncNode>( nodes );
+						}
+					}
+					
+						// look for existing node without public key that we can use
+					
+					if ( nodes != null ){
+						
+						for ( MsgSyncNode node: nodes ){
 							
-							if ( contact != null ){
+							if ( node.setDetails( contact, rm.public_key )){
 								
-								MsgSyncNode msg_node = null;
+								msg_node = node;
 								
-									// look for existing node without public key that we can use
-								
-								if ( nodes != null ){
-									
-									for ( MsgSyncNode node: nodes ){
-										
-										if ( node.setDetails( contact, public_key )){
-											
-											msg_node = node;
-											
-											break;
-										}
-									}
-								}
-								
-								if ( msg_node == null ){
-								
-									msg_node = addNode( contact, node_uid, public_key );
-									
-										// save so local list so pk available to other messages
-										// in this loop
-									
-									List<MsgSyncNode> x = msg_node_map.get( node_uid );
-									
-									if ( x == null ){
-										
-										x = new ArrayList<MsgSyncNode>();
-										
-										msg_node_map.put( node_uid, x );
-									}
-									
-									x.add( msg_node );
-								}
-									
-								all_public_keys.add( msg_node );
+								break;
+							}
+						}
+					}
+					
+					boolean	added = msg_node == null;
+					
+					if ( added ){
+					
+						msg_node = addNode( contact, rm.node_uid, rm.public_key );
+					}
+					
+					synchronized( bloom_details ){
+						
+						if ( added ){
+							
+								// save so local list so pk available to other messages
+								// in this reply
+							
+							List<MsgSyncNode> x = msg_node_map.get( rm.node_uid );
+							
+							if ( x == null ){
 								
-								new_message = addMessage( msg_node, message_id, content, control, signature, age, new_history, contact_map, MS_INCOMING );
+								x = new ArrayList<MsgSyncNode>();
 								
-								handled = true;
+								msg_node_map.put( rm.node_uid, x );
 							}
+							
+							x.add( msg_node );
 						}
+						
+						all_public_keys.add( msg_node );
+						
+						addToFingerprintMap( fingerprint_map, msg_node );
+					}
+					
+					return( addMessage( msg_node, rm.message_id, rm.content, rm.control, rm.signature, rm.age, rm.history, rm.contact_map, MS_INCOMING ));
+				}
+			}else if ( rm.public_key != null ){
+				
+					// the supplied key doesn't verify it so it is junk regardless of what keys we 
+					// learn about later
+				
+				HashWrapper bad_key = getBadMessageKey( rm.message );
+				
+				synchronized( bad_message_cache ){
+					
+					bad_message_cache.put( bad_key, "" );
+				}
+			}
+			
+			return( false );
+		}
+	}
+	
+	private void
+	releaseInFlight(
+		byte[]		signature )
+	{
+		synchronized( in_flight_sigs ){
+			
+			in_flight_sigs.remove( signature );
+		}
+	}
+	
+		/**
+		 * Covers all of the signed fields, the signature and supplied key
+		 */
+	
+	private static HashWrapper
+	getBadMessageKey(
+		Map<String,Object>		m )
+	{
+		SHA1Simple	hasher = new SHA1Simple();
+		
+		String[] keys = { "u", "i", "c", "$", "s", "p" };
+		
+		int	len = 0;
+		
+		for ( String k: keys ){
+			
+			byte[] b = (byte[])m.get( k );
+			
+			len += 4 + ( b==null?0:b.length );
+		}
+		
+		byte[]	temp = new byte[len];
+		
+		int	pos = 0;
+		
+		for ( String k: keys ){
+			
+			byte[] b = (byte[])m.get( k );
+			
+			int	b_len = b==null?0:b.length;
+			
+				// length prefix so fields can't be shuffled between one another
+			
+			temp[pos++] = (byte)( b_len >> 24 );
+			temp[pos++] = (byte)( b_len >> 16 );
+			temp[pos++] = (byte)( b_len >> 8 );
+			temp[pos++] = (byte)b_len;
+			
+			if ( b != null ){
+				
+				System.arraycopy( b, 0, temp, pos, b_len );
+				
+				pos += b_len;
+			}
+		}
+		
+		return( new HashWrapper( hasher.calculateHash( temp )));
+	}
+	
+	private static class
+	ReceivedMessage
+	{
+		private final Map<String,Object>	message;
+		
+		private final byte[]	node_uid;
+		private final byte[]	message_id;
+		private final byte[]	content;
+		private final byte[]	control;
+		private final byte[]	signature;
+		private final byte[]	history;
+		private final int		age;
+		
+			// these won't be present if remote believes we already have it (subject to occasional bloom false positives)
+		
+		private final byte[] 				public_key;
+		private final Map<String,Object>	contact_map;
+		
+		private final List<MsgSyncNode>		candidates;
+		private final int					uid_candidates;
+		private final int					known_key_count;
+		
+		private final AESemaphore	verify_sem = new AESemaphore( "MsgSyncHandler:verify" );
+		
+		private volatile boolean	verified;
+		
+		private MsgSyncNode		verified_node;
+		private int				verified_index;
+		private boolean			public_key_verified;
+		
+		private
+		ReceivedMessage(
+			Map<String,Object>		m,
+			byte[]					_history,
+			List<MsgSyncNode>		_candidates,
+			int						_uid_candidates,
+			int						_known_key_count )
+		{
+			message			= m;
+			
+			node_uid		= (byte[])m.get( "u" );
+			message_id 		= (byte[])m.get( "i" );
+			content			= (byte[])m.get( "c" );
+			control 		= (byte[])m.get( "$" );
+			signature		= (byte[])m.get( "s" );
+			age				= ((Number)m.get( "a" )).intValue();
+			public_key		= (byte[])m.get( "p" );
+			contact_map		= (Map<String,Object>)m.get( "k" );
+			
+			history			= _history;
+			candidates		= _candidates;
+			uid_candidates	= _uid_candidates;
+			known_key_count	= _known_key_count;
+			
+			if ( node_uid == null || message_id == null || content == null || signature == null ){
+				
+				throw( new RuntimeException( "Invalid message" ));
+			}
+		}
+		
+		private void
+		verify()
+		{
+			try{
+				for ( int i=0;i<candidates.size();i++){
+					
+					MsgSyncNode node = candidates.get( i );
+					
+					if ( verify( node )){
+						
+						verified_node	= node;
+						verified_index	= i;
+						
+						return;
 					}
 				}
 				
-				if ( new_message && handled ){
+				if ( public_key != null ){
 					
-					total_received++;
+					public_key_verified = verifySignature( MsgSyncKeyCache.getPublicKey( public_key ), node_uid, message_id, content, control, signature );
 				}
 			}catch( Throwable e ){
 				
 				Debug.out( e );
+				
+			}finally{
+				
+				verified = true;
+				
+				verify_sem.releaseForever();
 			}
 		}
 		
-		return( total_received );
+		private boolean
+		verify(
+			MsgSyncNode		node )
+		{
+			try{
+				return( verifySignature( node.getDecodedPublicKey(), node_uid, message_id, content, control, signature ));
+				
+			}catch( Throwable e ){
+				
+				return( false );
+			}
+		}
+		
+		private boolean
+		isVerified()
+		{
+			return( verified );
+		}
+		
+		private void
+		waitForVerify()
+		{
+			verify_sem.reserve();
+		}
 	}
 	
 	private void
@@ -4569,13 +6327,76 @@ MsgSyncHandler
 
 			}
 			
-			if ( banned != "" ){
-				
-				msg += "\n    Banned: " + banned;
-			}
+			if ( banned != "" ){
+				
+				msg += "\n    Banned: " + banned;
+			}
+			
+			reportInfoRaw( msg );
+		}
+	}
+	
+	private void
+	reportSyncStatus()
+	{
+		String msg;
+		
+		long	lock_acquires;
+		long	lock_contended;
+		long	lock_wait_nanos;
+		long	lock_max_wait_nanos;
+		
+		synchronized( message_lock ){
+			
+			msg = "Bloom: " + bloom_state.getStats();
+			
+			lock_acquires		= message_lock_acquires;
+			lock_contended		= message_lock_contended;
+			lock_wait_nanos		= message_lock_wait_nanos;
+			lock_max_wait_nanos	= message_lock_max_wait_nanos;
+		}
+		
+		msg += "\nIBLT: ok=" + iblt_ok + ", fail=" + iblt_fail + ", fallbacks=" + iblt_fallbacks + ", diff_estimate=" + (int)iblt_diff_estimate;
+		
+		msg += "\nProbe cache: hits=" + probe_cache_hits + ", misses=" + probe_cache_misses;
+		
+		msg += "\nContact cache: hits=" + contact_cache_hits + ", misses=" + contact_cache_misses;
+		
+		msg += "\nSync continuation pages: " + sync_continuations + ", reply budget: " + reply_budget;
+		
+		msg += "\nPublic keys: " + MsgSyncKeyCache.getStats();
+		
+		msg += "\nSkipped verifies: duplicate=" + pre_verify_dupes + ", in flight=" + pre_verify_in_flight + ", known bad=" + pre_verify_bad + ", key fingerprint hints=" + fingerprint_hints;
+		
+		if ( managing_ro ){
+			
+			msg += "\nRead-only rejections before verify: " + ro_pre_verify_rejects;
+		}
+		
+		msg += "\nPush: sent ok=" + push_ok + ", fail=" + push_fail + ", received=" + push_received;
+		
+		MsgSyncColdStore cs = cold_store;
+		
+		msg += "\nMessage lock: acquired=" + lock_acquires + ", contended=" + lock_contended + 
+				", avg wait=" + (lock_acquires==0?0:lock_wait_nanos/lock_acquires/1000) + "us, max wait=" + lock_max_wait_nanos/1000 + "us";
+		
+		if ( MsgSyncArena.ENABLED ){
+			
+			msg += "\nOff-heap: " + MsgSyncArena.getStats();
+		}
+		
+		msg += "\nWindow: " + max_messages + ", " + (cs==null?"no cold tier":cs.getStats()) + ", served=" + cold_served;
+		
+		msg += "\nNodes: " + node_registry.getStats();
+		
+		if ( FANOUT_NODES > 1 ){
 			
-			reportInfoRaw( msg );
+			msg += "\nFan-out: nodes=" + FANOUT_NODES + ", hedge=" + FANOUT_HEDGE_DELAY + "ms, rounds=" + fanout_rounds + ", extra sent=" + fanout_sent + ", not needed=" + fanout_cancelled + ", late replies=" + fanout_late;
 		}
+		
+		msg += "\nSelection: " + (SCORED_SELECTION?"scored":"uniform") + ", scored=[" + scored_selection_stats.getString() + "], uniform=[" + uniform_selection_stats.getString() + "]";
+		
+		reportInfoRaw( msg );
 	}
 	
 	private void
@@ -4654,8 +6475,12 @@ MsgSyncHandler
 		byte[]		originator_pk,
 		byte[]		history )
 	{
+		long	wait_start = System.nanoTime();
+		
 		synchronized( message_lock ){
-				
+			
+			lockAcquired( wait_start );
+			
 			if ( spammer_map.size() > 0 ){
 				
 				SpammerEntry spam = spammer_map.get( new HashWrapper2( originator_pk ));
@@ -4971,10 +6796,25 @@ MsgSyncHandler
 		}
 	}
 	
+	private void
+	sync(
+		MsgSyncNode		sync_node,
+		boolean			no_tunnel )
+	{
+		sync( sync_node, no_tunnel, null, null );
+	}
+	
+		/**
+		 * @param selection_stats	stats to update for the way the node was selected, null if not applicable
+		 * @param round				the fan-out round this sync is part of, null if none
+		 */
+	
 	private void
 	sync(
 		final MsgSyncNode		sync_node,
-		boolean					no_tunnel )
+		boolean					no_tunnel,
+		SelectionStats			selection_stats,
+		SyncRound				round )
 	{
 
 		if ( !( no_tunnel || is_anonymous_chat )){
@@ -5028,23 +6868,197 @@ MsgSyncHandler
 			}
 		}
 		
-		BloomDetails bloom_details = buildBloom();
-		
-		BloomFilter	bloom	= bloom_details.bloom;
+		try{
+			long	start = SystemTime.getMonotonousTime();
+			
+			int	page = 0;
+			
+			while( true ){
+				
+				BloomDetails bloom_details = buildBloom();
+				
+				if ( bloom_details.bloom_map == null ){
+					
+					return;
+				}
+				
+				boolean	use_iblt = useIBLT( sync_node, bloom_details );
+				
+				boolean	was_live = sync_node.getLastAlive() > 0 && sync_node.getFailCount() == 0;
+				
+				long	call_start = SystemTime.getMonotonousTime();
+				
+				Map<String,Object> reply_map;
+				
+				try{
+					reply_map = callSync( sync_node, buildSyncRequest( bloom_details, use_iblt ));
+					
+				}catch( Throwable e ){
+					
+						// only hold failures against the budget if the node was working, otherwise
+						// it is most likely just dead
+					
+					if ( was_live ){
+						
+						updateReplyBudget( false, 0, false );
+					}
+					
+					throw( e );
+				}
+				
+				if ( use_iblt && reply_map != null && reply_map.containsKey( "f" )){
+					
+						// difference too big for the table we sent, fall back to the bloom
+					
+					iblt_fallbacks++;
+					
+					reply_map = callSync( sync_node, buildSyncRequest( bloom_details, false ));
+				}
+				
+					// includes any fallback as that's what the sync actually cost
+				
+				long	call_time = SystemTime.getMonotonousTime() - call_start;
+				
+				if ( reply_map == null ){
+					
+					if ( round != null ){
+						
+						round.memberFailed();
+					}
+					
+					return;
+				}
+				
+				int[] result = processSyncReply( sync_node, bloom_details, reply_map );
+				
+				updateReplyBudget( true, call_time, result[1] > 0 );
+				
+				sync_node.syncOK( call_time, result[0] );
+				
+				if ( selection_stats != null ){
+					
+					selection_stats.syncOK( call_time, result[0] );
+				}
+				
+				if ( round != null && page == 0 && !round.replyReceived()){
+					
+						// another node in the round got there first. what we've got is still applied but
+						// leave any further pages to the next round rather than tying up a slot
+					
+					fanout_late++;
+					
+					return;
+				}
+				
+				page++;
+				
+					// if they have more for us then carry straight on with an updated bloom rather than waiting
+					// for a later tick to pick up the next page. only while we're making progress and within
+					// budget so a node can't hog a sync slot
+				
+				if ( 	destroyed || 
+						result[0] == 0 || 
+						result[1] == 0 || 
+						page >= MAX_SYNC_PAGES || 
+						SystemTime.getMonotonousTime() - start >= MAX_SYNC_PAGE_TIME ){
+					
+					return;
+				}
+				
+				sync_continuations++;
+				
+				if ( TRACE )trace( "Continuing sync with " + sync_node.getName() + ", page=" + page + ", more=" + result[1] );
+			}
+		}catch( Throwable e ){
+			
+			//if ( TRACE )trace(e.getMessage());
+			
+			out_req_fail++;
+			
+			sync_node.failed();
+			
+			sync_node.syncFailed();
+			
+			if ( selection_stats != null ){
+				
+				selection_stats.syncFailed();
+			}
+			
+			if ( round != null ){
+				
+				round.memberFailed();
+			}
+		}
+	}
+	
+	private int
+	getMaxReplyBudget()
+	{
+		return( is_anonymous_chat?MAX_REPLY_BUDGET_ANON:MAX_REPLY_BUDGET_PUBLIC );
+	}
 	
-		ReentrantLock	bloom_lock = new ReentrantLock();
+	private void
+	updateReplyBudget(
+		boolean		ok,
+		long		call_time,
+		boolean		more_to_come )
+	{
+		int	budget = reply_budget;
 		
-		if ( bloom == null ){
+		if ( ok ){
 			
-				// clashed too many times, whatever, we'll try again soon
+			long	target = is_anonymous_chat?20*1000:5*1000;
 			
-			return;
+			if ( call_time > target ){
+				
+				budget = budget*3/4;
+				
+			}else if ( more_to_come && call_time < target/2 ){
+				
+				budget = budget*5/4;
+			}
+		}else{
+			
+			budget = budget/2;
+		}
+		
+		reply_budget = Math.max( MIN_REPLY_BUDGET, Math.min( getMaxReplyBudget(), budget ));
+	}
+	
+	private boolean
+	useIBLT(
+		MsgSyncNode		sync_node,
+		BloomDetails	bloom_details )
+	{
+		if ( sync_node.getProtocolVersion() < 6 ){
+			
+			return( false );
 		}
 		
+			// only worth it if the table sized for the expected difference is smaller than the bloom
+		
+		int	iblt_size 	= MsgSyncIBLT.getSerialisedSize( getIBLTCells());
+		int	bloom_size	= ( bloom_details.iblt_keys.length * 10 ) / 8;
+		
+		return( iblt_size < bloom_size );
+	}
+	
+	private int
+	getIBLTCells()
+	{
+			// 3 hashes need ~1.3x the difference to decode reliably, add some slack for estimate error
+		
+		return((int)Math.ceil( iblt_diff_estimate * 2 ) + 6 );
+	}
+	
+	private Map<String,Object>
+	buildSyncRequest(
+		BloomDetails		bloom_details,
+		boolean				use_iblt )
+	{
 		byte[]		rand 	= bloom_details.rand;
 		int	message_count 	= bloom_details.message_count;
 
-		
 		Map<String,Object> request_map = new HashMap<String,Object>();
 		
 		request_map.put( "v", VERSION );
@@ -5055,237 +7069,345 @@ MsgSyncHandler
 		
 		byte[]	request_id = new byte[6];
 		
-		RandomUtils.nextBytes( request_id );
+		RandomUtils.nextBytes( request_id );
+		
+		request_map.put( "q", request_id );
+		
+		if ( use_iblt ){
+			
+			MsgSyncIBLT iblt = new MsgSyncIBLT( getIBLTCells());
+			
+			long[] keys = bloom_details.iblt_keys;
+			
+			for ( long k: keys ){
+				
+				iblt.add( k );
+			}
+			
+			request_map.put( "i", iblt.serialise());
+			
+		}else{
+			
+			request_map.put( "b", bloom_details.bloom_map );
+		}
+		
+		request_map.put( "r", rand );
+		request_map.put( "rb", reply_budget );
+		request_map.put( "m", message_count );
+		request_map.put( "p", bloom_details.new_message_count );
+			
+		long ot = bloom_details.oldest_message_timestamp;
+		
+		if ( ot > 0 ){
+			
+			long now = SystemTime.getCurrentTime();
+					
+			if ( now > ot ){
+					
+				int	oldest_age_secs = (int) (( now - ot ) / 1000 );
+								
+				request_map.put( "o", oldest_age_secs );
+			}
+		}
+		
+			// let them know we keep older messages so they're worth sending, and how far back the
+			// ones we already have go. the sync set only covers the in-memory window so without
+			// this they'd keep offering cold messages we have
+		
+		MsgSyncColdStore cs = cold_store;
+		
+		if ( cs != null ){
+			
+			request_map.put( "w", max_messages );
+			
+			int	cold_count = cs.size();
+			
+			request_map.put( "cc", cold_count );
+			
+			long cold_oldest = cs.getOldestTimestamp();
+			
+			if ( cold_count > 0 && cold_oldest > 0 ){
+				
+				long now = SystemTime.getCurrentTime();
+				
+				request_map.put( "co", (int)( Math.max( 0, now - cold_oldest ) / 1000 ));
+			}
+		}
+		
+		if ( !is_anonymous_chat ){
+			
+			try{
+				if ( dht instanceof DHTPlugin ){
+					
+					DHTPlugin dht_plugin = (DHTPlugin)dht;
+					
+					DHT core_dht = dht_plugin.getDHT( DHTPlugin.NW_AZ_MAIN );
+					
+					if ( core_dht != null ){
+						
+						DHTNATPuncher nat_puncher = core_dht.getNATPuncher();
+						
+						if ( nat_puncher != null ){
+							
+							DHTTransportContact rendezvous = nat_puncher.getRendezvous();
+							
+							if ( rendezvous != null ){
+								
+								request_map.put( "z", rendezvous.exportContactToMap());
+							}
+						}
+					}
+				}
+			}catch( Throwable e ){
+					
+				Debug.out( e );
+			}
+		}
+		
+		return( request_map );
+	}
+	
+		/**
+		 * @return the reply or null if the node turned out to be a loopback
+		 */
+	
+	private Map<String,Object>
+	callSync(
+		MsgSyncNode				sync_node,
+		Map<String,Object>		request_map )
+	
+		throws Exception
+	{
+		byte[]	sync_data = BEncoder.encode( request_map );
+		
+		if ( private_messaging_secret != null ){
+			
+			sync_data = privateMessageEncrypt( sync_data );
+			
+		}else{
+							
+			sync_data = generalMessageEncrypt( sync_data );
+		}
+		
+		// long	start = SystemTime.getMonotonousTime();
+					
+		byte[] reply_bytes = 
+			sync_node.getContact().call(
+				new DHTPluginProgressListener() {
+					
+					@Override
+					public void reportSize(long size) {
+					}
+					
+					@Override
+					public void reportCompleteness(int percent) {
+					}
+					
+					@Override
+					public void reportActivity(String str) {
+					}
+				},
+				dht_call_key,
+				sync_data, 
+				30*1000 );
+	
+		// if (TRACE )trace( "Call took " + ( SystemTime.getMonotonousTime() - start ));
+		
+		if ( reply_bytes == null ){
+
+			throw( new Exception( "Timeout - no reply" ));
+		}
+		
+		if ( private_messaging_secret != null ){
+			
+			reply_bytes = privateMessageDecrypt( reply_bytes );
+			
+		}else{
+							
+			reply_bytes = generalMessageDecrypt( reply_bytes );
+		}
+		
+		out_req_ok++;
+		
+		Map<String,Object> reply_map = BDecoder.decode( reply_bytes );
+
+		int	type = reply_map.containsKey( "t" )?((Number)reply_map.get( "t" )).intValue():-1; 
+
+		int expected_type = ((Number)request_map.get( "t" )).intValue()==RT_PUSH_REQUEST?RT_PUSH_REPLY:RT_SYNC_REPLY;
+		
+		if ( type != expected_type ){
+			
+				// meh, issue with 'call' implementation when made to self - you end up getting the
+				// original request data back as the result :( Can't currently see how to easily fix
+				// this so handle it for the moment. update - fixed so shouldn't be seeing this issue now
+			
+			removeNode( sync_node, true );
+			
+			return( null );
+		}
+		
+		if ( TRACE )trace( "reply: " + reply_map + " from " + sync_node.getName());
+		
+		int status = ((Number)reply_map.get( "s" )).intValue();
+		
+		if ( status == STATUS_LOOPBACK ){
+			
+			removeNode( sync_node, true );
+			
+			return( null );
+		}
+		
+		sync_node.ok();
 		
-		request_map.put( "q", request_id );
+		nodeIsAlive( sync_node );
+
+		last_successful_sync_time = SystemTime.getMonotonousTime();
 		
-		request_map.put( "b", bloom.serialiseToMap());
-		request_map.put( "r", rand );
-		request_map.put( "m", message_count );
-		request_map.put( "p", bloom_details.new_message_count );
-			
-		long ot = bloom_details.oldest_message_timestamp;
+		Number	n_version = (Number)reply_map.get( "v" );
 		
-		if ( ot > 0 ){
+		if ( n_version != null ){
 			
-			long now = SystemTime.getCurrentTime();
-					
-			if ( now > ot ){
-					
-				int	oldest_age_secs = (int) (( now - ot ) / 1000 );
-								
-				request_map.put( "o", oldest_age_secs );
-			}
+			sync_node.setProtocolVersion( n_version.intValue());
 		}
 		
-		if ( !is_anonymous_chat ){
+		if ( request_map.containsKey( "i" )){
 			
-			try{
-				if ( dht instanceof DHTPlugin ){
-					
-					DHTPlugin dht_plugin = (DHTPlugin)dht;
+			if ( reply_map.containsKey( "f" )){
+				
+				iblt_diff_estimate = Math.min( MAX_IBLT_DIFF_ESTIMATE, Math.max( iblt_diff_estimate * 2, 16 ));
+				
+			}else{
+				
+				Number n_diff = (Number)reply_map.get( "d" );
+				
+				if ( n_diff != null ){
 					
-					DHT core_dht = dht_plugin.getDHT( DHTPlugin.NW_AZ_MAIN );
+					double diff = n_diff.doubleValue();
 					
-					if ( core_dht != null ){
-						
-						DHTNATPuncher nat_puncher = core_dht.getNATPuncher();
-						
-						if ( nat_puncher != null ){
-							
-							DHTTransportContact rendezvous = nat_puncher.getRendezvous();
-							
-							if ( rendezvous != null ){
-								
-								request_map.put( "z", rendezvous.exportContactToMap());
-							}
-						}
-					}
+					iblt_diff_estimate = Math.min( MAX_IBLT_DIFF_ESTIMATE, Math.max( diff, ( iblt_diff_estimate + diff ) / 2 ));
 				}
-			}catch( Throwable e ){
-					
-				Debug.out( e );
 			}
 		}
 		
-		try{
-			byte[]	sync_data = BEncoder.encode( request_map );
+		return( reply_map );
+	}
+	
+		/**
+		 * @return { messages received, more to come }
+		 */
+	
+	private int[]
+	processSyncReply(
+		MsgSyncNode				sync_node,
+		BloomDetails			bloom_details,
+		Map<String,Object>		reply_map )
+	
+		throws Exception
+	{
+		List<Map<String,Object>>	list = (List<Map<String,Object>>)reply_map.get( "m" );
+		
+		int	received;
+		
+		if ( list != null ){
 			
-			if ( private_messaging_secret != null ){
-				
-				sync_data = privateMessageEncrypt( sync_data );
-				
-			}else{
-								
-				sync_data = generalMessageEncrypt( sync_data );
-			}
+			received = receiveMessages( sync_node, bloom_details, list );
 			
-			// long	start = SystemTime.getMonotonousTime();
-						
-			byte[] reply_bytes = 
-				sync_node.getContact().call(
-					new DHTPluginProgressListener() {
-						
-						@Override
-						public void reportSize(long size) {
-						}
-						
-						@Override
-						public void reportCompleteness(int percent) {
-						}
-						
-						@Override
-						public void reportActivity(String str) {
-						}
-					},
-					dht_call_key,
-					sync_data, 
-					30*1000 );
-		
-			// if (TRACE )trace( "Call took " + ( SystemTime.getMonotonousTime() - start ));
+		}else{
 			
-			if ( reply_bytes == null ){
-
-				throw( new Exception( "Timeout - no reply" ));
-			}
+				// compressed replies are decoded and processed a message at a time
 			
-			if ( private_messaging_secret != null ){
-				
-				reply_bytes = privateMessageDecrypt( reply_bytes );
-				
-			}else{
-								
-				reply_bytes = generalMessageDecrypt( reply_bytes );
-			}
+			byte[]	compressed 	= (byte[])reply_map.get( "z" );
+			byte[]	deflated 	= (byte[])reply_map.get( "y" );
 			
-			out_req_ok++;
+			InputStream	is;
 			
-			Map<String,Object> reply_map = BDecoder.decode( reply_bytes );
-
-			int	type = reply_map.containsKey( "t" )?((Number)reply_map.get( "t" )).intValue():-1; 
-
-			if ( type != RT_SYNC_REPLY ){
+			if ( deflated != null ){
+				
+				is = MsgSyncCompression.getInputStream( deflated );
 				
-					// meh, issue with 'call' implementation when made to self - you end up getting the
-					// original request data back as the result :( Can't currently see how to easily fix
-					// this so handle it for the moment. update - fixed so shouldn't be seeing this issue now
+			}else if ( compressed != null ){
 				
-				removeNode( sync_node, true );
+				is = new GZIPInputStream( new ByteArrayInputStream( compressed ));
 				
 			}else{
 				
-				if ( TRACE )trace( "reply: " + reply_map + " from " + sync_node.getName());
+				is = null;
+			}
+			
+			if ( is != null ){
 				
-				int status = ((Number)reply_map.get( "s" )).intValue();
+				MessageReceiver receiver = new MessageReceiver( sync_node, bloom_details );
 				
-				if ( status == STATUS_LOOPBACK ){
-					
-					removeNode( sync_node, true );
-					
-				}else{
-					
-					sync_node.ok();
+				try{
+					new MsgSyncReplyDecoder( new BufferedInputStream( is, MAX_MESSSAGE_REPLY_SIZE ), MAX_DECOMPRESSED_REPLY_SIZE ).decode( receiver );
 					
-					nodeIsAlive( sync_node );
-
-					last_successful_sync_time = SystemTime.getMonotonousTime();
+				}finally{
 					
-					List<Map<String,Object>>	list = (List<Map<String,Object>>)reply_map.get( "m" );
+					is.close();
 					
-					if ( list == null ){
-						
-						byte[]	compressed = (byte[])reply_map.get( "z" );
-						
-						if ( compressed != null ){
-							
-							ByteArrayInputStream bais = new ByteArrayInputStream( compressed );
-							
-							GZIPInputStream zip = new GZIPInputStream( bais );
-													
-							Map temp = BDecoder.decode( new BufferedInputStream( zip, MAX_MESSSAGE_REPLY_SIZE ));
-							
-							list = (List<Map<String,Object>>)temp.get( "m" );
-						}
-					}
+						// apply whatever we managed to decode
 					
-					int	received;
+					receiver.complete();
 					
-					if ( list != null ){
-						
-						try{
-							bloom_lock.lock();
-						
-							received = receiveMessages( sync_node, bloom_details, list );
-							
-						}finally{
+					received = receiver.getReceivedCount();
+				}
+			}else{
+				
+				received = 0;
+			}
+		}
+		
+		Number n_more_to_come = (Number)reply_map.get( "x" );
+								
+		int	more_to_come = n_more_to_come==null?0:n_more_to_come.intValue();
+		
+		last_more_to_come = more_to_come;
+		
+		if ( more_to_come > 0 ){
+			
+			consec_no_more_to_come = 0;
+			
+			if ( received >= 2 ){
 							
-							bloom_lock.unlock();
-						}
-						
-					}else{
-						
-						received = 0;
-					}
-					
-					Number n_more_to_come = (Number)reply_map.get( "x" );
-											
-					int	more_to_come = n_more_to_come==null?0:n_more_to_come.intValue();
+				byte[] bk = sync_node.getAddressKey().getBytes();
+				
+				synchronized( biased_node_bloom ){
 					
-					last_more_to_come = more_to_come;
+						// important we don't allow a node to repeatedly bias itself else
+						// it can organise a flood to go via a single node and masquarade behind it
 					
-					if ( more_to_come > 0 ){
+					if ( biased_node_out == null && !biased_node_bloom.contains( bk )){
 						
-						consec_no_more_to_come = 0;
+						biased_node_bloom.add( bk );
 						
-						if ( received >= 2 ){
-										
-							byte[] bk = sync_node.getContactAddress().getBytes( "UTF-8" );
-							
-							synchronized( biased_node_bloom ){
-								
-									// important we don't allow a node to repeatedly bias itself else
-									// it can organise a flood to go via a single node and masquarade behind it
-								
-								if ( biased_node_out == null && !biased_node_bloom.contains( bk )){
-									
-									biased_node_bloom.add( bk );
-									
-									if ( TRACE )trace( "Proposing biased node_out " + sync_node.getName());
+						if ( TRACE )trace( "Proposing biased node_out " + sync_node.getName());
 
-									biased_node_out = sync_node;
-								}
-							}
-						}
-					}else{
-						
-						consec_no_more_to_come++;
-					}
-					
-					Map rln = (Map)reply_map.get( "n" );
-					
-					if ( rln != null ){
-						
-						byte[]	uid = (byte[])rln.get( "u" );
-						Map		c	= (Map)rln.get( "c" );
-						
-						DHTPluginContact contact = dht.importContact( c );
-						
-						if ( contact != null ){
-						
-							addNode( contact, uid, null );
-						}
+						biased_node_out = sync_node;
 					}
 				}
 			}
-		}catch( Throwable e ){
+		}else{
 			
-			//if ( TRACE )trace(e.getMessage());
+			consec_no_more_to_come++;
+		}
+		
+		Map rln = (Map)reply_map.get( "n" );
+		
+		if ( rln != null ){
 			
-			out_req_fail++;
+			byte[]	uid = (byte[])rln.get( "u" );
+			Map		c	= (Map)rln.get( "c" );
 			
-			sync_node.failed();
+			DHTPluginContact contact = importContact( c );
+			
+			if ( contact != null ){
+			
+				addNode( contact, uid, null );
+			}
 		}
-	}	
+		
+		return( new int[]{ received, more_to_come });
+	}
 
 	@Override
 	public byte[]
@@ -5334,7 +7456,7 @@ MsgSyncHandler
 				return( reply_bytes );
 			}
 			
-			if ( type != RT_SYNC_REQUEST ){
+			if ( type != RT_SYNC_REQUEST && type != RT_PUSH_REQUEST ){
 				
  				return( null );
 			}
@@ -5368,6 +7490,11 @@ MsgSyncHandler
 
 			in_req++;
 			
+			if ( type == RT_PUSH_REQUEST ){
+				
+				return( handlePushRequest( originator, request_map ));
+			}
+			
 			Map<String,Object> reply_map = new HashMap<String,Object>();
 
 			int		status;
@@ -5392,11 +7519,13 @@ MsgSyncHandler
 				
 				Number	n_messages_they_have 	= (Number)request_map.get( "m" );
 				Number	n_oldest_age 			= (Number)request_map.get( "o" );
+				Number	n_window	 			= (Number)request_map.get( "w" );
 				
 				//System.out.println( message_new_count + ": " +  m_temp + "/" + request_map.get( "p" ) + "/" + request_map.get( "n" ));
 				
 				int	messages_they_have 	= n_messages_they_have==null?-1:n_messages_they_have.intValue();
 				int	oldest_age			= n_oldest_age==null?0:n_oldest_age.intValue();
+				int	their_window		= n_window==null?MAX_MESSAGES:Math.min( MAX_RETAINED_MESSAGES, n_window.intValue());
 				
 				int messages_hidden = 0;
 				
@@ -5405,127 +7534,162 @@ MsgSyncHandler
 					oldest_age = 0;
 				}
 				
-				List<MsgSyncNode> caller_nodes = getNodes( uid );
+				MsgSyncNode originator_node = getOriginatorNode( originator, uid );
+				
+				nodeIsAlive( originator_node );
+
+				originator_node.setProtocolVersion( caller_version );
 				
-				MsgSyncNode originator_node = null;
+				byte[]				iblt_bytes	= (byte[])request_map.get( "i" );
+				Map<String,Object>	bloom_map	= iblt_bytes==null?(Map<String,Object>)request_map.get("b"):null;
+
+					// requesters reuse the same bloom for a while so cache the work done against it
 				
-				if ( caller_nodes != null ){
-					
-					for ( MsgSyncNode n: caller_nodes ){
-						
-						if ( sameContact( originator, n.getContact())){
-							
-							originator_node = n;
-							
-							break;
-						}
-					}
-				}
+				HashWrapper	probe_key = getProbeCacheKey( iblt_bytes, bloom_map, rand );
 				
-				if ( originator_node == null  ){
-					
-					originator_node = addNode( originator, uid, null );
-				}
+				SyncProbe	probe;
 				
-				nodeIsAlive( originator_node );
-
-				BloomFilter bloom = BloomFilterFactory.deserialiseFromMap((Map<String,Object>)request_map.get("b"));
-								
 				List<MsgSyncMessage>	missing = new ArrayList<MsgSyncMessage>();
 				
+				List<MsgSyncColdStore.Entry>	cold_missing = new ArrayList<MsgSyncColdStore.Entry>();
+				
 				int messages_we_have;
 				
-				int	messages_we_have_they_deleted = 0;
+				int	messages_we_have_they_deleted;
 				
-				synchronized( message_lock ){
+				MessageSnapshot	snapshot = message_snapshot;
+				
+				messages_we_have = snapshot.messages.length;
+				
+				ProbeCacheEntry probe_entry;
+				
+				synchronized( probe_cache ){
+					
+					probe_entry = probe_cache.get( probe_key );
+				}
+				
+				if ( probe_entry == null || probe_entry.mutation_id != snapshot.mutation_id ){
 					
-					messages_we_have = messages.size();
+					probe_cache_misses++;
 					
-					List<MsgSyncMessage>	messages_we_both_have = new ArrayList<MsgSyncMessage>( messages_we_have );
+					probe_entry = createProbeCacheEntry( snapshot, iblt_bytes, bloom_map, rand );
+					
+					synchronized( probe_cache ){
 
-					for ( MsgSyncMessage msg: messages ){
-						
-						byte[]	sig = msg.getSignature().clone();	// clone as we mod it
-			
-						for ( int i=0;i<rand.length;i++){
-							
-							sig[i] ^= rand[i];
-						}
+						probe_cache.put( probe_key, probe_entry );
+					}
+				}else{
+					
+					probe_cache_hits++;
+				}
+				
+				probe = probe_entry.getProbe( rand );
+				
+				if ( iblt_bytes != null ){
+					
+					if ( probe == null ){
+					
+							// difference too large to decode, they'll retry with a bloom 
+					
+						reply_map.put( "f", 1 );
 						
-						byte[] del_sig = sig.clone();
+					}else{
 						
-						for ( int i=0;i<del_sig.length;i++){
-							
-							del_sig[i] ^= 0xff;
-						}
+						reply_map.put( "d", ((IBLTSyncProbe)probe).getDifference());
+					}
+				}
+				
+				messages_we_have_they_deleted = probe_entry.they_deleted_count;
+				
+				for ( MsgSyncMessage msg: probe_entry.both_have ){
+					
+					msg.probablySeen();
+				}
+				
+				for ( MsgSyncMessage msg: probe_entry.they_lack ){
+					
+						// I have it, they don't
+					
+						// don't return any messages that are going to be discarded by the
+						// caller as they are older than the oldest message they have and
+						// they have max messages. this helps with users that have been offline
+						// for a while on a reasonably active channel and not yet resynced
+					
+					boolean	too_old = false;
+					
+					if ( oldest_age > 0 && their_window <= MAX_MESSAGES ){
 						
-						if ( bloom.contains( sig )){
+						int	msg_age = msg.getAgeSecs();
+					
+						too_old = msg_age - oldest_age >= 5*60;
+					}
 
-							messages_we_both_have.add( msg );
-							
-							msg.probablySeen();
-							
-						}else if ( bloom.contains( del_sig )){
-							
-							messages_we_have_they_deleted++;
+					if ( !too_old ){
+					
+						if ( caller_version < 5 && msg.getControl() != null ){
+						
+							// caller can't handle the additional control component of sig, hide it
 							
 						}else{
 						
-								// I have it, they don't
+							if ( plugin.isGlobalBan( msg )){
 							
-								// don't return any messages that are going to be discarded by the
-								// caller as they are older than the oldest message they have and
-								// they have max messages. this helps with users that have been offline
-								// for a while on a reasonably active channel and not yet resynced
-							
-							boolean	too_old = false;
-							
-							if ( oldest_age > 0 ){
+								messages_hidden++;
 								
-								int	msg_age = msg.getAgeSecs();
-							
-								too_old = msg_age - oldest_age >= 5*60;
-							}
-
-							if ( !too_old ){
-							
-								if ( caller_version < 5 && msg.getControl() != null ){
+								msg.seen();
 								
-									// caller can't handle the additional control component of sig, hide it
-									
-								}else{
+								msg.delivered();
 								
-									if ( plugin.isGlobalBan( msg )){
-									
-										messages_hidden++;
-										
-										msg.seen();
-										
-										msg.delivered();
-										
-									}else{
-										
-										missing.add( msg );
-									}
-								}
+							}else{
+								
+								missing.add( msg );
 							}
 						}
 					}
+				}
+				
+				if ( messages_they_have >= messages_we_have && messages_we_have_they_deleted == 0 ){
+					
+					// just in case we have a bloom clash and they don't really have
+					// the message, double check that they have at least as many
+					// messages as us
+				
+					for ( MsgSyncMessage msg: probe_entry.both_have ){
+					
+						msg.seen();
+					}
+				}
+				
+					// their in-memory window is full and they keep older messages too so offer
+					// what we have in the cold tier that falls within their window
+				
+				MsgSyncColdStore cs = cold_store;
+				
+				if ( cs != null && probe != null && oldest_age > 0 && their_window > MAX_MESSAGES ){
 					
-					if ( messages_they_have >= messages_we_have && messages_we_have_they_deleted == 0 ){
-						
-						// just in case we have a bloom clash and they don't really have
-						// the message, double check that they have at least as many
-						// messages as us
+					Number	n_cold_count	= (Number)request_map.get( "cc" );
+					Number	n_cold_oldest	= (Number)request_map.get( "co" );
 					
-						for ( MsgSyncMessage msg: messages_we_both_have ){
+					int	cold_room = their_window - MAX_MESSAGES - ( n_cold_count==null?0:Math.max( 0, n_cold_count.intValue()));
+					
+					if ( cold_room > 0 ){
+						
+						long	before = 0;
 						
-							msg.seen();
+						if ( n_cold_oldest != null ){
+							
+							before = SystemTime.getCurrentTime() - Math.max( 0, n_cold_oldest.longValue()) * 1000;
 						}
+						
+						getColdMissing( cs, snapshot, probe, before, cold_room, cold_missing );
 					}
 				}
 					
-				if ( missing.size() > 0 ){
+				if ( missing.size() > 0 || cold_missing.size() > 0 ){
+					
+					Number	n_budget = (Number)request_map.get( "rb" );
+					
+					int	reply_limit = n_budget==null?MAX_MESSSAGE_REPLY_SIZE:Math.max( MIN_REPLY_BUDGET, Math.min( getMaxReplyBudget(), n_budget.intValue()));
 					
 					Set<MsgSyncNode>	done_nodes = new HashSet<MsgSyncNode>();
 					
@@ -5547,7 +7711,7 @@ MsgSyncHandler
 
 						int	control_length = control==null?0:control.length;
 						
-						if ( content_control_bytes + content.length + control_length > MAX_MESSSAGE_REPLY_SIZE ){
+						if ( content_control_bytes + content.length + control_length > reply_limit ){
 							
 							more_to_come++;
 							
@@ -5558,23 +7722,11 @@ MsgSyncHandler
 																		
 						if ( TRACE )trace( "    returning " + ByteFormatter.encodeString( message.getID()));
 						
-						Map<String,Object> m = new HashMap<String,Object>();
+						Map<String,Object> m = exportMessage( message );
 						
 						l.add( m );
 						
 						MsgSyncNode	n = message.getNode();					
-
-						m.put( "u", n.getUID());
-						m.put( "i", message.getID());
-						m.put( "c", content );
-						m.put( "s", message.getSignature());
-						m.put( "a", message.getAgeSecs());
-						m.put( "h", message.getHistory());
-						
-						
-						if ( control != null ){
-							m.put( "$", control );
-						}
 						
 						message.delivered();
 						
@@ -5587,19 +7739,7 @@ MsgSyncHandler
 							if ( pub != null ){
 							
 								try{
-									byte[] ad = n.getContactAddress().getBytes( "UTF-8" );
-									
-									byte[] pk_ad = new byte[pub.length + ad.length];
-									
-									System.arraycopy( pub, 0, pk_ad, 0, pub.length );
-									System.arraycopy( ad, 0, pk_ad, pub.length, ad.length );
-									
-									for ( int i=0;i<rand.length;i++){
-										
-										pk_ad[i] ^= rand[i];
-									}
-									
-									if ( !bloom.contains( pk_ad )){
+									if ( !probe.hasNodeKey( n )){
 										
 										if ( TRACE )trace( "    and pk" );
 										
@@ -5618,36 +7758,109 @@ MsgSyncHandler
 								Debug.out( "Should always have pk" );
 							}
 						}
+						
+						if ( caller_version >= 9 && !m.containsKey( "p" )){
+							
+							byte[] fp = n.getKeyFingerprint();
+							
+							if ( fp != null ){
+								
+								m.put( "f", fp );
+							}
+						}
 					}
 					
-					boolean	 is_compressed = false;
-					
-					if ( caller_version >= 4 ){
-					
-						Map temp = new HashMap();
+					for ( MsgSyncColdStore.Entry entry: cold_missing ){
 						
-						temp.put( "m", l );
+						Map<String,Object> record = cs.read( entry );
 						
-						byte[] plain = BEncoder.encode( temp );
+						if ( record == null ){
+							
+							continue;
+						}
+						
+							// hidden in the same way as banned messages in the window
+						
+						byte[]	pk = (byte[])record.get( "p" );
+						
+						if ( pk != null && plugin.isGlobalBan( pk )){
+							
+							continue;
+						}
+						
+						Map<String,Object> m = exportColdMessage( record );
+						
+						if ( m == null ){
+							
+							continue;
+						}
+						
+						byte[]	content = (byte[])m.get( "c" );
+						byte[] 	control = (byte[])m.get( "$" );
+
+						int	control_length = control==null?0:control.length;
+						
+						if ( content_control_bytes + content.length + control_length > reply_limit ){
+							
+							more_to_come++;
+							
+							continue;
+						}
 						
-						ByteArrayOutputStream	baos = new ByteArrayOutputStream( plain.length * 2 );
+						content_control_bytes += content.length + control_length;
 						
-						GZIPOutputStream zip = new GZIPOutputStream( baos );
+						if ( TRACE )trace( "    returning cold " + ByteFormatter.encodeString((byte[])m.get( "i" )));
+
+						l.add( m );
 						
-						zip.write( plain );
+						cold_served++;
+					}
+					
+					boolean	 is_compressed = false;
+					
+					if ( caller_version >= 8 ){
 						
-						zip.finish();
+						Map temp = new HashMap();
 						
-						zip.close();
+						temp.put( "m", l );
 						
-						byte[] compressed = baos.toByteArray();
+						byte[] compressed = MsgSyncCompression.compress( BEncoder.encode( temp ));
 						
-						if ( compressed.length < plain.length ){
+						if ( compressed != null ){
 							
-							reply_map.put( "z", compressed );
+							reply_map.put( "y", compressed );
 							
 							is_compressed = true;
 						}
+					}else if ( caller_version >= 4 ){
+					
+						Map temp = new HashMap();
+						
+						temp.put( "m", l );
+						
+						byte[] plain = BEncoder.encode( temp );
+						
+						if ( plain.length >= MsgSyncCompression.MIN_COMPRESS_SIZE ){
+							
+							ByteArrayOutputStream	baos = new ByteArrayOutputStream( plain.length * 2 );
+							
+							GZIPOutputStream zip = new GZIPOutputStream( baos );
+							
+							zip.write( plain );
+							
+							zip.finish();
+							
+							zip.close();
+							
+							byte[] compressed = baos.toByteArray();
+							
+							if ( compressed.length < plain.length ){
+								
+								reply_map.put( "z", compressed );
+								
+								is_compressed = true;
+							}
+						}
 					}
 					
 					if ( !is_compressed ){
@@ -5667,7 +7880,7 @@ MsgSyncHandler
 					if ( rendezvous_map != null ){
 						
 						try{
-							DHTPluginContact rendezvous =  dht.importContact( rendezvous_map );
+							DHTPluginContact rendezvous =  importContact( rendezvous_map );
 							
 							if ( rendezvous != null ){
 								
@@ -5680,7 +7893,7 @@ MsgSyncHandler
 						// if we can get a reply to them with the bloom then we should equally as well be able to 
 						// hit them directly as normal
 					
-					byte[] bk = originator_node.getContactAddress().getBytes( "UTF-8" );
+					byte[] bk = originator_node.getAddressKey().getBytes();
 					
 					synchronized( biased_node_bloom ){
 												
@@ -5713,6 +7926,8 @@ MsgSyncHandler
 			
 			reply_map.put( "t", RT_SYNC_REPLY );		// type
 
+			reply_map.put( "v", VERSION );
+
 			if ( more_to_come > 0 ){
 				
 				reply_map.put( "x", more_to_come );
@@ -6013,20 +8228,31 @@ MsgSyncHandler
 	saveMessages()
 	{
 		if ( save_messages ){
-									
-			synchronized( message_lock ){
+			
+			MsgSyncColdStore cs = cold_store;
+			
+			if ( cs != null ){
+				
+				cs.flush();
+			}
+			
+			synchronized( save_lock ){
 			
 				if ( messages_loading ){
 					
 					return;
 				}
 				
-				if ( save_messages_mutation_id == message_mutation_id ){
+				saveNodes();
+				
+				MessageSnapshot snapshot = message_snapshot;
+				
+				if ( save_messages_mutation_id == snapshot.mutation_id ){
 					
 					return;
 				}
 				
-				save_messages_mutation_id = message_mutation_id;
+				save_messages_mutation_id = snapshot.mutation_id;
 				
 				Map map = new HashMap();
 
@@ -6042,7 +8268,7 @@ MsgSyncHandler
 			
 				Map<MsgSyncNode,Integer>	node_map = new HashMap<MsgSyncNode, Integer>();
 						
-				for ( MsgSyncMessage msg: messages ){
+				for ( MsgSyncMessage msg: snapshot.messages ){
 
 					MsgSyncNode node = msg.getNode();
 					
@@ -6098,7 +8324,7 @@ MsgSyncHandler
 
 				FileUtil.writeResilientFile( file_name,  map );
 				
-				log( "Saved " + messages.size() + " messages" );
+				log( "Saved " + snapshot.messages.length + " messages" );
 			}
 		}
 	}
@@ -6109,10 +8335,244 @@ MsgSyncHandler
 		File file_name = getMessageFile();
 
 		file_name.delete();
+		
+		getMessageFile( "n" ).delete();
+	}
+	
+	private void
+	loadNodes()
+	{
+		if ( !save_messages || dht.isInitialising()){
+			
+			return;
+		}
+		
+		Map map;
+		
+		synchronized( save_lock ){
+			
+			nodes_loaded = true;
+			
+			File file_name = getMessageFile( "n" );
+			
+			if ( !file_name.exists()){
+				
+				return;
+			}
+			
+			map = FileUtil.readResilientFile( file_name );
+		}
+		
+		int	restored = 0;
+		
+		try{
+			Long		time 		= (Long)map.get( "time" );
+			List<Map>	node_imp	= (List<Map>)map.get( "nodes" );
+			
+			if ( time == null || node_imp == null ){
+				
+				return;
+			}
+			
+			long	elapsed = Math.max( 0, SystemTime.getCurrentTime() - time );
+			
+			for ( Map m: node_imp ){
+				
+				long	alive_ago = ((Number)m.get( "a" )).longValue()*1000 + elapsed;
+				
+				if ( alive_ago > MAX_CACHED_NODE_AGE ){
+					
+					continue;
+				}
+				
+				byte[]	uid 		= (byte[])m.get( "u" );
+				byte[]	public_key	= (byte[])m.get( "p" );
+				
+				if ( Arrays.equals( uid, my_uid )){
+					
+					continue;
+				}
+				
+				DHTPluginContact	contact = dht.importContact((Map)m.get( "c" ));
+				
+				if ( contact == null ){
+					
+					continue;
+				}
+				
+				MsgSyncNode node = addNode( contact, uid, public_key );
+				
+					// leave anything we've already heard about this session alone
+				
+				if ( node == my_node || node.getLastAlive() > 0 || node.getFailCount() > 0 ){
+					
+					continue;
+				}
+				
+				Map	r = (Map)m.get( "r" );
+				
+				if ( r != null ){
+					
+					DHTPluginContact rendezvous = dht.importContact( r );
+					
+					if ( rendezvous != null ){
+						
+						node.setRendezvous( rendezvous );
+					}
+				}
+				
+				long[]	history = null;
+				
+				Number	n_latency = (Number)m.get( "l" );
+				
+				if ( n_latency != null ){
+					
+					history = new long[]{ n_latency.longValue(), ((Number)m.get( "e" )).longValue(), ((Number)m.get( "y" )).longValue()};
+				}
+				
+				node.restore( alive_ago, ((Number)m.get( "f" )).intValue(), history );
+				
+				restored++;
+			}
+		}catch( Throwable e ){
+			
+			Debug.out( e );
+		}
+		
+		if ( restored > 0 ){
+			
+			warm_start_sync = true;
+		}
+		
+		log( "Restored " + restored + " nodes" );
+	}
+	
+		/**
+		 * Caller must hold save_lock
+		 */
+	
+	private void
+	saveNodes()
+	{
+			// don't overwrite the cache before it has been read
+		
+		if ( !( save_messages && nodes_loaded )){
+			
+			return;
+		}
+		
+			// nothing's been heard from or about any node since the last save
+		
+		int	mutation_id = node_registry.getMutationId();
+		
+		if ( mutation_id == save_nodes_mutation_id ){
+			
+			return;
+		}
+		
+		save_nodes_mutation_id = mutation_id;
+		
+		long	now = SystemTime.getMonotonousTime();
+		
+		List<MsgSyncNode>	nodes = new ArrayList<MsgSyncNode>();
+		
+		for ( MsgSyncNode node: node_registry.getNodes( MsgSyncNodeRegistry.SEL_ALL )){
+			
+			long	last_alive = node.getLastAlive();
+			
+			if ( 	node != private_messaging_node && 
+					last_alive > 0 && 
+					now - last_alive < MAX_CACHED_NODE_AGE && 
+					node.getFailCount() < 2 ){
+				
+				nodes.add( node );
+			}
+		}
+		
+		final Map<MsgSyncNode,Long>	alive_times = new HashMap<MsgSyncNode,Long>();
+		
+		for ( MsgSyncNode node: nodes ){
+			
+			alive_times.put( node, node.getLastAlive());
+		}
+		
+		Collections.sort(
+			nodes,
+			new Comparator<MsgSyncNode>()
+			{
+				@Override
+				public int
+				compare(
+					MsgSyncNode		n1,
+					MsgSyncNode		n2 )
+				{
+					return( Long.compare( alive_times.get( n2 ), alive_times.get( n1 )));
+				}
+			});
+		
+		List<Map>	node_exp = new ArrayList<Map>();
+		
+		for ( MsgSyncNode node: nodes ){
+			
+			if ( node_exp.size() == MAX_CACHED_NODES ){
+				
+				break;
+			}
+			
+			try{
+				Map m = new HashMap();
+				
+				m.put( "u", node.getUID());
+				
+				byte[] pk = node.getPublicKey();
+				
+				if ( pk != null ){
+					
+					m.put( "p", pk );
+				}
+				
+				m.put( "c", node.getContact().exportToMap());
+				m.put( "a", ( now - alive_times.get( node ))/1000 );
+				m.put( "f", node.getFailCount());
+				
+				long[] history = node.getSyncHistory();
+				
+				m.put( "l", history[0] );
+				m.put( "e", history[1] );
+				m.put( "y", history[2] );
+				
+				DHTPluginContact rendezvous = node.getRendezvous();
+				
+				if ( rendezvous != null ){
+					
+					m.put( "r", rendezvous.exportToMap());
+				}
+				
+				node_exp.add( m );
+				
+			}catch( Throwable e ){
+				
+				Debug.out( e );
+			}
+		}
+		
+		Map map = new HashMap();
+		
+		map.put( "time", SystemTime.getCurrentTime());
+		map.put( "nodes", node_exp );
+		
+		FileUtil.writeResilientFile( getMessageFile( "n" ), map );
 	}
 	
 	private File
 	getMessageFile()
+	{
+		return( getMessageFile( "" ));
+	}
+	
+	private File
+	getMessageFile(
+		String		tier )
 	{
 		File dir = plugin.getPersistDir();
 		
@@ -6120,13 +8580,16 @@ MsgSyncHandler
 		
 		File old_file_name = null;
 		
-		String suffix =  (is_anonymous_chat?"a":"p") + ".dat";
+		String suffix =  (is_anonymous_chat?"a":"p") + tier + ".dat";
 		
 		if ( user_key.length > 64 ){
 		
 				// migrate from when file names could get pretty long and cause issues on some file systems
 			
-			old_file_name = new File( dir, Base32.encode( user_key ) + suffix );
+			if ( tier.length() == 0 ){
+			
+				old_file_name = new File( dir, Base32.encode( user_key ) + suffix );
+			}
 			
 			key = new SHA1Simple().calculateHash( user_key );
 		}
@@ -6201,6 +8664,30 @@ MsgSyncHandler
 			
 			status = ST_DESTROYED;
 			
+			if ( MsgSyncArena.ENABLED ){
+				
+					// the arena never shrinks so slots still held by the window would be lost for good
+				
+				long	wait_start = System.nanoTime();
+				
+				synchronized( message_lock ){
+					
+					lockAcquired( wait_start );
+					
+					for ( MsgSyncMessage msg: messages ){
+						
+						msg.moveFromArena();
+					}
+				}
+			}
+			
+			MsgSyncColdStore cs = cold_store;
+			
+			if ( cs != null ){
+				
+				cs.close();
+			}
+			
 			synchronized( pending_handler_regs ){
 				
 				if ( dht_listen_keys_registered ){
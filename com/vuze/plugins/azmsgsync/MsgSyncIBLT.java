@@ -0,0 +1,343 @@
+/*
+ * Created on Oct 17, 2026
+ *
+ * Copyright 2026 Azureus Software, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package com.vuze.plugins.azmsgsync;
+
+import java.util.Set;
+
+/**
+ * Invertible bloom lookup table over 64 bit key fingerprints. The requester sends its table, the
+ * responder subtracts its own and decodes the result to get the exact symmetric difference of the two
+ * sets - the table only has to be sized for the difference, not the sets themselves
+ */
+
+public class
+MsgSyncIBLT
+{
+	private static final int	HASH_COUNT	= 3;
+	
+	private static final int	CELL_BYTES	= 2 + 8 + 4;
+	
+	protected static final int	MIN_CELLS	= 4*HASH_COUNT;
+	protected static final int	MAX_CELLS	= 256*HASH_COUNT;
+	
+	private final int		cells_per_hash;
+	
+	private final short[]	counts;
+	private final long[]	key_sums;
+	private final int[]		hash_sums;
+	
+		/**
+		 * @param cells rounded up to a multiple of the hash count
+		 */
+
+	protected
+	MsgSyncIBLT(
+		int		cells )
+	{
+		cells = Math.max( MIN_CELLS, Math.min( MAX_CELLS, cells ));
+		
+		cells_per_hash = ( cells + HASH_COUNT - 1 ) / HASH_COUNT;
+		
+		int	num = cells_per_hash*HASH_COUNT;
+		
+		counts		= new short[num];
+		key_sums	= new long[num];
+		hash_sums	= new int[num];
+	}
+	
+	protected
+	MsgSyncIBLT(
+		byte[]		bytes )
+		
+		throws Exception
+	{
+		int	num = bytes.length / CELL_BYTES;
+		
+		if ( num*CELL_BYTES != bytes.length || num % HASH_COUNT != 0 || num < MIN_CELLS || num > MAX_CELLS ){
+			
+			throw( new Exception( "Invalid IBLT" ));
+		}
+		
+		cells_per_hash = num / HASH_COUNT;
+		
+		counts		= new short[num];
+		key_sums	= new long[num];
+		hash_sums	= new int[num];
+		
+		int	pos = 0;
+		
+		for ( int i=0;i<num;i++){
+			
+			counts[i] = (short)(((bytes[pos++]&0xff)<<8) | (bytes[pos++]&0xff));
+			
+			long	k = 0;
+			
+			for ( int j=0;j<8;j++){
+				
+				k = ( k << 8 ) | ( bytes[pos++]&0xff );
+			}
+			
+			key_sums[i] = k;
+			
+			int	h = 0;
+			
+			for ( int j=0;j<4;j++){
+				
+				h = ( h << 8 ) | ( bytes[pos++]&0xff );
+			}
+			
+			hash_sums[i] = h;
+		}
+	}
+	
+	protected int
+	getCellCount()
+	{
+		return( counts.length );
+	}
+	
+	protected static int
+	getSerialisedSize(
+		int		cells )
+	{
+		cells = Math.max( MIN_CELLS, Math.min( MAX_CELLS, cells ));
+		
+		return((( cells + HASH_COUNT - 1 ) / HASH_COUNT ) * HASH_COUNT * CELL_BYTES );
+	}
+	
+	protected byte[]
+	serialise()
+	{
+		int	num = counts.length;
+		
+		byte[]	bytes = new byte[num*CELL_BYTES];
+		
+		int	pos = 0;
+		
+		for ( int i=0;i<num;i++){
+			
+			short	c = counts[i];
+			
+			bytes[pos++] = (byte)( c >> 8 );
+			bytes[pos++] = (byte)c;
+			
+			long	k = key_sums[i];
+			
+			for ( int j=56;j>=0;j-=8){
+				
+				bytes[pos++] = (byte)( k >> j );
+			}
+			
+			int	h = hash_sums[i];
+			
+			for ( int j=24;j>=0;j-=8){
+				
+				bytes[pos++] = (byte)( h >> j );
+			}
+		}
+		
+		return( bytes );
+	}
+	
+	protected void
+	add(
+		long		key )
+	{
+		update( key, 1 );
+	}
+	
+	protected void
+	remove(
+		long		key )
+	{
+		update( key, -1 );
+	}
+	
+	private void
+	update(
+		long		key,
+		int			delta )
+	{
+		int	check = checkHash( key );
+		
+		for ( int i=0;i<HASH_COUNT;i++){
+			
+			int	cell = getCell( key, i );
+			
+			counts[cell]	+= delta;
+			key_sums[cell]	^= key;
+			hash_sums[cell]	^= check;
+		}
+	}
+	
+		/**
+		 * this = this - other, both must have the same cell count
+		 */
+
+	protected boolean
+	subtract(
+		MsgSyncIBLT		other )
+	{
+		if ( other.counts.length != counts.length ){
+			
+			return( false );
+		}
+		
+		for ( int i=0;i<counts.length;i++){
+			
+			counts[i]	-= other.counts[i];
+			key_sums[i]	^= other.key_sums[i];
+			hash_sums[i]^= other.hash_sums[i];
+		}
+		
+		return( true );
+	}
+	
+		/**
+		 * Peels the (subtracted) table. Destructive.
+		 * @param positive	keys present in this table but not the one subtracted
+		 * @param negative	keys present in the one subtracted but not this one
+		 * @return false if the difference was too large to decode
+		 */
+
+	protected boolean
+	decode(
+		Set<Long>		positive,
+		Set<Long>		negative )
+	{
+		int	num = counts.length;
+		
+		boolean	progress = true;
+		
+		while( progress ){
+			
+			progress = false;
+			
+			for ( int i=0;i<num;i++){
+				
+				int	c = counts[i];
+				
+				if ( c == 1 || c == -1 ){
+					
+					long	key = key_sums[i];
+					
+					if ( hash_sums[i] != checkHash( key )){
+						
+						continue;
+					}
+					
+					if ( c == 1 ){
+						
+						positive.add( key );
+						
+					}else{
+						
+						negative.add( key );
+					}
+					
+					update( key, -c );
+					
+					progress = true;
+				}
+			}
+		}
+		
+		for ( int i=0;i<num;i++){
+			
+			if ( counts[i] != 0 || key_sums[i] != 0 || hash_sums[i] != 0 ){
+				
+				return( false );
+			}
+		}
+		
+		return( true );
+	}
+	
+	private int
+	getCell(
+		long		key,
+		int			index )
+	{
+		long	h = mix( key + index * 0x9e3779b97f4a7c15L );
+		
+		return( index*cells_per_hash + (int)(( h >>> 1 ) % cells_per_hash ));
+	}
+	
+	private static int
+	checkHash(
+		long		key )
+	{
+		return((int)( mix( key ^ 0x5bd1e9955bd1e995L ) >>> 32 ));
+	}
+	
+	private static long
+	mix(
+		long	h )
+	{
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		
+		return( h );
+	}
+	
+		/**
+		 * Seeded 64 bit fingerprint of a key without copying it. Inverting is equivalent to
+		 * fingerprinting the bitwise complement of the bytes
+		 */
+
+	protected static long
+	fingerprint(
+		byte[]		bytes,
+		long		seed,
+		boolean		invert )
+	{
+		long	h = seed ^ ( bytes.length * 0x9e3779b97f4a7c15L );
+		
+		int	x = invert?0xff:0x00;
+		
+		for ( int i=0;i<bytes.length;i++){
+			
+			h ^= ( bytes[i] ^ x ) & 0xff;
+			
+			h *= 0x100000001b3L;
+		}
+		
+		return( mix( h ));
+	}
+	
+	protected static long
+	getSeed(
+		byte[]		rand )
+	{
+		long	seed = 0;
+		
+		for ( int i=0;i<rand.length && i < 8;i++){
+			
+			seed = ( seed << 8 ) | ( rand[i]&0xff );
+		}
+		
+		return( seed );
+	}
+}
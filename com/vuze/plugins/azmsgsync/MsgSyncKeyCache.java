@@ -0,0 +1,160 @@
+/*
+ * Created on Oct 17, 2026
+ *
+ * Copyright 2026 Azureus Software, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package com.vuze.plugins.azmsgsync;
+
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.biglybt.core.security.CryptoECCUtils;
+import com.biglybt.core.util.HashWrapper;
+import com.biglybt.core.util.SHA1Simple;
+
+/**
+ * Plugin wide cache of decoded public keys - decoding the EC point is a significant part of the cost
+ * of a verification and the same few keys turn up over and over across syncs and channels
+ */
+
+public class
+MsgSyncKeyCache
+{
+	private static final int	MAX_KEYS	= 1024;
+	
+	private static final int	FINGERPRINT_LENGTH	= 4;
+	
+	private static final Map<HashWrapper,PublicKey>	key_cache =
+		new LinkedHashMap<HashWrapper,PublicKey>(MAX_KEYS,0.75f,true)
+		{
+			@Override
+			protected boolean
+			removeEldestEntry(
+		   		Map.Entry<HashWrapper,PublicKey> eldest)
+			{
+				return size() > MAX_KEYS;
+			}
+		};
+		
+		// Signature instances aren't thread safe but can be re-initialised for a new key so each
+		// verifying thread keeps one
+		
+	private static final ThreadLocal<Signature>	verifiers = new ThreadLocal<Signature>();
+	
+	private static volatile long	node_hits;
+	private static volatile long	cache_hits;
+	private static volatile long	cache_misses;
+	
+	protected static PublicKey
+	getPublicKey(
+		byte[]		raw )
+		
+		throws Exception
+	{
+		HashWrapper	hw = new HashWrapper( raw );
+		
+		synchronized( key_cache ){
+			
+			PublicKey key = key_cache.get( hw );
+			
+			if ( key != null ){
+				
+				cache_hits++;
+				
+				return( key );
+			}
+		}
+		
+		cache_misses++;
+		
+		PublicKey key = CryptoECCUtils.rawdataToPubkey( raw );
+		
+		synchronized( key_cache ){
+			
+			key_cache.put( hw, key );
+		}
+		
+		return( key );
+	}
+	
+		/**
+		 * Short identifier of a key used as a hint in sync replies, collisions are fine as it only 
+		 * narrows down which keys to try
+		 */
+	
+	protected static byte[]
+	getFingerprint(
+		byte[]		raw )
+	{
+		byte[]	hash = new SHA1Simple().calculateHash( raw );
+		
+		byte[]	result = new byte[FINGERPRINT_LENGTH];
+		
+		System.arraycopy( hash, 0, result, 0, FINGERPRINT_LENGTH );
+		
+		return( result );
+	}
+	
+	protected static void
+	recordNodeHit()
+	{
+		node_hits++;
+	}
+	
+		/**
+		 * @return a verifier for the key, only valid for use by the calling thread until its next call
+		 */
+
+	protected static Signature
+	getVerifier(
+		PublicKey		key )
+		
+		throws Exception
+	{
+		Signature sig = verifiers.get();
+		
+		if ( sig == null ){
+			
+			sig = CryptoECCUtils.getSignature( key );
+			
+			verifiers.set( sig );
+			
+		}else{
+			
+			sig.initVerify( key );
+		}
+		
+		return( sig );
+	}
+	
+	protected static String
+	getStats()
+	{
+		int	size;
+		
+		synchronized( key_cache ){
+			
+			size = key_cache.size();
+		}
+		
+		return( "node hits=" + node_hits + ", cache hits=" + cache_hits + ", misses=" + cache_misses + ", size=" + size );
+	}
+}
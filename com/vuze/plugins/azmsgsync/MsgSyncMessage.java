@@ -22,6 +22,8 @@
 
 package com.vuze.plugins.azmsgsync;
 
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
 import com.biglybt.core.util.SystemTime;
 
 public class 
@@ -34,20 +36,38 @@ MsgSyncMessage
 	
 	private final MsgSyncNode			node;
 	private final byte[]				message_id;
-	private final byte[]				content;
-	private final byte[]				control;
+	
+		// content is the byte[] while on heap. while the message is in a window and held in the
+		// arena it is the ArenaPayload for all three parts and control/history are null. no wrapper
+		// object for the usual heap case
+	
+	private volatile Object				content;
+	private volatile byte[]				control;
+	private volatile byte[]				history;
 	
 	private final byte[]		signature;
 	
 	private final int			age_when_received_secs;
 	
-	private long			time_received;
+		// not final as it is reset if the clock goes backwards
+	
+	private volatile long	time_received;
+	
+		// delivery, probably seen and seen counts packed into one field as they're bumped on most
+		// messages for every sync request. they saturate rather than wrap, only small values matter
+	
+	private static final int	SEEN_SHIFT				= 0;
+	private static final int	PROBABLY_SEEN_SHIFT		= 11;
+	private static final int	DELIVERY_SHIFT			= 22;
 	
-	private int				delivery_count;
-	private int				probably_seen_count;
-	private int				seen_count;
+	private static final int	SEEN_MASK				= 0x7ff;
+	private static final int	PROBABLY_SEEN_MASK		= 0x7ff;
+	private static final int	DELIVERY_MASK			= 0x3ff;
 	
-	private byte[]			history;
+	private static final AtomicIntegerFieldUpdater<MsgSyncMessage>	counts_updater = 
+		AtomicIntegerFieldUpdater.newUpdater( MsgSyncMessage.class, "counts" );
+	
+	private volatile int	counts;
 	
 	private String			local_msg;
 	
@@ -64,7 +84,6 @@ MsgSyncMessage
 		node		= _node;
 		message_id	= _message_id;
 		signature	= _signature;
-		history		= _history==null?BLANK_HISTORY:_history;
 		
 		age_when_received_secs	= _age_secs < 0 ?0:_age_secs;
 		time_received			= SystemTime.getCurrentTime();		// can't use monotime here as computer sleep suspends it :(
@@ -84,7 +103,8 @@ MsgSyncMessage
 			content		= _content;
 		}
 		
-		control = _control;
+		control	= _control;
+		history	= _history==null?BLANK_HISTORY:_history;
 	}
 	
 	protected
@@ -97,9 +117,8 @@ MsgSyncMessage
 		node		= _node;
 		message_id	= _message_id;
 		content		= new byte[0];
-		control		= null;
-		signature	= _signature;
 		history		= BLANK_HISTORY;
+		signature	= _signature;
 		
 		age_when_received_secs	= 0;
 		time_received			= SystemTime.getCurrentTime();
@@ -172,73 +191,244 @@ MsgSyncMessage
 	protected byte[]
 	getHistory()
 	{
-		return( history );
+		return( getPayload( PP_HISTORY ));
 	}
 	
 	protected int
 	getDeliveryCount()
 	{
-		synchronized( this ){
-		
-			return( delivery_count );
-		}
+		return( getCount( DELIVERY_SHIFT, DELIVERY_MASK ));
 	}
 	
 	protected void
 	delivered()
 	{
-		synchronized( this ){
-		
-			delivery_count++;
-		}
+		incrementCount( DELIVERY_SHIFT, DELIVERY_MASK );
 	}
 	
 	protected int
 	getProbablySeenCount()
 	{
-		synchronized( this ){
-		
-			return( probably_seen_count );
-		}
+		return( getCount( PROBABLY_SEEN_SHIFT, PROBABLY_SEEN_MASK ));
 	}
 	
 	protected void
 	probablySeen()
 	{
-		synchronized( this ){
-		
-			probably_seen_count++;
-		}
+		incrementCount( PROBABLY_SEEN_SHIFT, PROBABLY_SEEN_MASK );
 	}
 	
 	protected int
 	getSeenCount()
 	{
-		synchronized( this ){
-		
-			return( seen_count );
-		}
+		return( getCount( SEEN_SHIFT, SEEN_MASK ));
 	}
 	
 	protected void
 	seen()
 	{
-		synchronized( this ){
-		
-			seen_count++;
+		incrementCount( SEEN_SHIFT, SEEN_MASK );
+	}
+	
+	private int
+	getCount(
+		int		shift,
+		int		mask )
+	{
+		return(( counts >>> shift ) & mask );
+	}
+	
+	private void
+	incrementCount(
+		int		shift,
+		int		mask )
+	{
+		while( true ){
+			
+			int	current = counts;
+			
+			if ((( current >>> shift ) & mask ) == mask ){
+				
+				return;
+			}
+			
+			if ( counts_updater.compareAndSet( this, current, current + ( 1 << shift ))){
+				
+				return;
+			}
 		}
 	}
 	
 	public byte[]
 	getContent()
 	{
-		return( content );
+		return( getPayload( PP_CONTENT ));
 	}
 	
 	public byte[]
 	getControl()
 	{
-		return( control );
+		return( getPayload( PP_CONTROL ));
+	}
+	
+	private static final int	PP_CONTENT	= 0;
+	private static final int	PP_CONTROL	= 1;
+	private static final int	PP_HISTORY	= 2;
+	
+	private byte[]
+	getPayload(
+		int		part )
+	{
+		while( true ){
+			
+			Object	c = content;
+			
+			if ( c instanceof byte[] ){
+				
+				if ( part == PP_CONTENT ){
+					
+					return((byte[])c );
+				}
+				
+				byte[] result = part==PP_CONTROL?control:history;
+				
+					// moving to the arena switches content before clearing the others so if it is
+					// unchanged what we read is valid
+				
+				if ( content == c ){
+					
+					return( result );
+				}
+				
+				continue;
+			}
+			
+			ArenaPayload ap = (ArenaPayload)c;
+			
+			byte[]	result;
+			
+			if ( part == PP_CONTENT ){
+				
+				result = MsgSyncArena.read( ap.handle, 0, ap.content_len );
+				
+			}else if ( part == PP_CONTROL ){
+				
+				result = ap.control_len<0?null:MsgSyncArena.read( ap.handle, ap.content_len, ap.control_len );
+				
+			}else{
+				
+				result = MsgSyncArena.read( ap.handle, ap.content_len + Math.max( 0, ap.control_len ), ap.history_len );
+			}
+			
+				// if the payload moved back to the heap while we were reading the slot may have
+				// been reused so go again
+			
+			if ( content == c ){
+				
+				return( result );
+			}
+		}
+	}
+	
+		/**
+		 * Moves the payload off-heap if the arena is enabled. Only called for messages entering a
+		 * window, with the window's lock held
+		 */
+	
+	protected void
+	moveToArena()
+	{
+		if ( !MsgSyncArena.ENABLED ){
+			
+			return;
+		}
+		
+		Object	c = content;
+		
+		if ( !( c instanceof byte[] )){
+			
+			return;
+		}
+		
+		byte[]	con	= (byte[])c;
+		byte[]	ctl	= control;
+		byte[]	his	= history;
+		
+		int	control_len = ctl==null?-1:ctl.length;
+		
+		int	total = con.length + Math.max( 0, control_len ) + his.length;
+		
+		long handle = MsgSyncArena.allocate( total );
+		
+		if ( handle == -1 ){
+			
+			return;
+		}
+		
+		MsgSyncArena.write( handle, 0, con );
+		
+		if ( ctl != null ){
+		
+			MsgSyncArena.write( handle, con.length, ctl );
+		}
+		
+		MsgSyncArena.write( handle, con.length + Math.max( 0, control_len ), his );
+		
+		content = new ArenaPayload( handle, con.length, control_len, his.length );
+		
+		control	= null;
+		history	= null;
+	}
+	
+		/**
+		 * Brings the payload back on-heap and frees its slot, for messages leaving a window as
+		 * they may still be referenced for a while
+		 */
+	
+	protected void
+	moveFromArena()
+	{
+		Object	c = content;
+		
+		if ( !( c instanceof ArenaPayload )){
+			
+			return;
+		}
+		
+		ArenaPayload ap = (ArenaPayload)c;
+		
+		byte[]	con = getContent();
+		
+		control	= getControl();
+		history	= getHistory();
+		
+			// switch content last so readers never see the heap form with the other parts missing
+		
+		content = con;
+		
+		MsgSyncArena.free( ap.handle, ap.content_len + Math.max( 0, ap.control_len ) + ap.history_len );
+	}
+	
+	private static final class
+	ArenaPayload
+	{
+		private final long		handle;
+		private final int		content_len;
+		private final int		control_len;		// -1 for no control
+		private final int		history_len;
+		
+		private
+		ArenaPayload(
+			long		_handle,
+			int			_content_len,
+			int			_control_len,
+			int			_history_len )
+		{
+			handle		= _handle;
+			content_len	= _content_len;
+			control_len	= _control_len;
+			history_len	= _history_len;
+		}
 	}
 	
 	public byte[]
@@ -0,0 +1,318 @@
+/*
+ * Created on Oct 17, 2026
+ *
+ * Copyright 2026 Azureus Software, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package com.vuze.plugins.azmsgsync;
+
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Messages ordered oldest first by the timestamp they had when added (fixed at that point so the
+ * order can't be disturbed by clock changes). Backed by a ring buffer with a parallel array of keys
+ * so insertion is a binary search plus a short shift and eviction of the oldest is O(1).
+ *
+ * Mutations must be externally synchronised and only become visible once publish() is called, which
+ * copies the messages into an immutable snapshot array that iteration uses. Readers can then iterate
+ * without holding any lock, and an insert followed by an eviction only costs the one copy
+ */
+
+public class
+MsgSyncMessageStore
+	extends AbstractCollection<MsgSyncMessage>
+{
+	private static final MsgSyncMessage[]	EMPTY = {};
+	
+	private MsgSyncMessage[]	ring;
+	private long[]				keys;
+	private int					head;
+	private int					count;
+	
+	private boolean		changed;
+	
+	private volatile MsgSyncMessage[]	snapshot = EMPTY;
+	
+	protected
+	MsgSyncMessageStore(
+		int		initial_capacity )
+	{
+		int	cap = 16;
+		
+		while( cap < initial_capacity ){
+			
+			cap <<= 1;
+		}
+		
+		ring	= new MsgSyncMessage[cap];
+		keys	= new long[cap];
+	}
+	
+	@Override
+	public int
+	size()
+	{
+		return( count );
+	}
+	
+	@Override
+	public boolean
+	isEmpty()
+	{
+		return( count == 0 );
+	}
+	
+	protected MsgSyncMessage
+	get(
+		int		index )
+	{
+		if ( index < 0 || index >= count ){
+			
+			throw( new IndexOutOfBoundsException( "index=" + index + ", size=" + count ));
+		}
+		
+		return( ring[( head + index ) & ( ring.length - 1 )]);
+	}
+	
+	protected MsgSyncMessage
+	getFirst()
+	{
+		if ( count == 0 ){
+			
+			throw( new NoSuchElementException());
+		}
+		
+		return( ring[head] );
+	}
+	
+	protected MsgSyncMessage
+	getLast()
+	{
+		if ( count == 0 ){
+			
+			throw( new NoSuchElementException());
+		}
+		
+		return( get( count-1 ));
+	}
+	
+		/**
+		 * Inserts after any messages with the same or an older timestamp
+		 * @return the position the message was inserted at
+		 */
+
+	protected int
+	insert(
+		MsgSyncMessage		msg )
+	{
+		if ( count == ring.length ){
+			
+			grow();
+		}
+		
+		long	key 	= msg.getTimestamp();
+		int		mask	= ring.length - 1;
+		
+			// upper bound
+			
+		int	lo = 0;
+		int	hi = count;
+		
+		while( lo < hi ){
+			
+			int	mid = ( lo + hi ) >>> 1;
+			
+			if ( keys[( head + mid ) & mask] <= key ){
+				
+				lo = mid + 1;
+				
+			}else{
+				
+				hi = mid;
+			}
+		}
+		
+		int	pos = lo;
+		
+			// new messages almost always go at or near the end so shift whichever side is smaller
+			
+		if ( pos >= count/2 ){
+			
+			for ( int i=count;i>pos;i--){
+				
+				int	to 		= ( head + i ) & mask;
+				int	from	= ( head + i - 1 ) & mask;
+				
+				ring[to]	= ring[from];
+				keys[to]	= keys[from];
+			}
+		}else{
+			
+			head = ( head - 1 ) & mask;
+			
+			for ( int i=0;i<pos;i++){
+				
+				int	to 		= ( head + i ) & mask;
+				int	from	= ( head + i + 1 ) & mask;
+				
+				ring[to]	= ring[from];
+				keys[to]	= keys[from];
+			}
+		}
+		
+		int	slot = ( head + pos ) & mask;
+		
+		ring[slot]	= msg;
+		keys[slot]	= key;
+		
+		count++;
+		
+		changed = true;
+		
+		return( pos );
+	}
+	
+	protected MsgSyncMessage
+	removeFirst()
+	{
+		if ( count == 0 ){
+			
+			throw( new NoSuchElementException());
+		}
+		
+		MsgSyncMessage	result = ring[head];
+		
+		ring[head] = null;
+		
+		head = ( head + 1 ) & ( ring.length - 1 );
+		
+		count--;
+		
+		changed = true;
+		
+		return( result );
+	}
+	
+		/**
+		 * @return the messages at the time of the last publish, oldest first. must not be modified
+		 */
+
+	protected MsgSyncMessage[]
+	getSnapshot()
+	{
+		return( snapshot );
+	}
+	
+	@Override
+	public Iterator<MsgSyncMessage>
+	iterator()
+	{
+		final MsgSyncMessage[]	msgs = snapshot;
+		
+		return(
+			new Iterator<MsgSyncMessage>()
+			{
+				private int	pos;
+				
+				@Override
+				public boolean
+				hasNext()
+				{
+					return( pos < msgs.length );
+				}
+				
+				@Override
+				public MsgSyncMessage
+				next()
+				{
+					if ( pos >= msgs.length ){
+						
+						throw( new NoSuchElementException());
+					}
+					
+					return( msgs[pos++] );
+				}
+			});
+	}
+	
+	private void
+	grow()
+	{
+		int	old_len = ring.length;
+		
+		MsgSyncMessage[]	new_ring = new MsgSyncMessage[old_len*2];
+		long[]				new_keys = new long[old_len*2];
+		
+		for ( int i=0;i<count;i++){
+			
+			int	from = ( head + i ) & ( old_len - 1 );
+			
+			new_ring[i]	= ring[from];
+			new_keys[i]	= keys[from];
+		}
+		
+		ring	= new_ring;
+		keys	= new_keys;
+		head	= 0;
+	}
+	
+		/**
+		 * Makes any mutations since the last call visible to readers, externally synchronised as for mutations
+		 */
+	
+	protected void
+	publish()
+	{
+		if ( !changed ){
+			
+			return;
+		}
+		
+		changed = false;
+		
+		if ( count == 0 ){
+			
+			snapshot = EMPTY;
+			
+			return;
+		}
+		
+		MsgSyncMessage[]	result = new MsgSyncMessage[count];
+		
+		int	first_part = Math.min( count, ring.length - head );
+		
+		System.arraycopy( ring, head, result, 0, first_part );
+		
+		if ( first_part < count ){
+			
+			System.arraycopy( ring, 0, result, first_part, count - first_part );
+		}
+		
+		snapshot = result;
+	}
+	
+	@Override
+	public String
+	toString()
+	{
+		return( Arrays.toString( snapshot ));
+	}
+}
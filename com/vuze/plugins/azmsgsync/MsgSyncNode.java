@@ -23,8 +23,10 @@
 package com.vuze.plugins.azmsgsync;
 
 import java.net.Inet6Address;
+import java.security.PublicKey;
 import java.util.Arrays;
 
+import com.biglybt.core.util.Debug;
 import com.biglybt.core.util.SystemTime;
 
 import com.biglybt.plugin.dht.DHTPluginContact;
@@ -32,20 +34,49 @@ import com.biglybt.plugin.dht.DHTPluginContact;
 public class 
 MsgSyncNode 
 {
+	private static final double	EWMA_ALPHA		= 0.3;
+	
+		// a node that has never been synced with scores as one with no failures, no latency and this
+		// yield so new nodes get tried. yield per sync is capped so one node can't make itself the
+		// only target by feeding us a flood
+	
+	private static final double	YIELD_PRIOR		= 1.0;
+	private static final int	MAX_YIELD		= 10;
+	private static final double	LATENCY_SCALE	= 2000;
+	
 	private DHTPluginContact[]		contacts;
 	private byte[]					uid;
 	private byte[]					public_key;
 	
-	private volatile String			contact_str;
+	private volatile String				contact_str;
+	private volatile MsgSyncContactKey	address_key;
+	private volatile byte[]			bloom_key;
+	
+	private volatile Object[]		decoded_public_key;		// { raw, decoded }
+	private volatile byte[]			key_fingerprint;
 	
 	private volatile long	last_alive;
 	private volatile int	fail_count;
+	private volatile int	protocol_version;
 	
 	private volatile DHTPluginContact	rendezvous;
 	private volatile long				last_tunnel;
 	
 	private long			last_message_timestamp;
 	
+	private volatile double	ewma_latency;
+	private volatile double	ewma_failure;
+	private volatile double	ewma_yield;
+	
+		// maintained by the registry the node has been added to and guarded by it
+	
+	private volatile MsgSyncNodeRegistry	registry;
+	
+	protected int							registry_state	= -1;
+	protected int							registry_index	= -1;
+	protected MsgSyncNodeRegistry.Group		registry_group;
+	protected MsgSyncNodeRegistry.Group		registry_active_group;
+	
 	protected
 	MsgSyncNode(
 		DHTPluginContact		contact,
@@ -87,6 +118,20 @@ MsgSyncNode
 	protected boolean
 	setIPv6Hint(
 		boolean	ipv6_pref )
+	{
+		if ( !setIPv6HintSupport( ipv6_pref )){
+			
+			return( false );
+		}
+		
+		addressChanged();
+		
+		return( true );
+	}
+	
+	private boolean
+	setIPv6HintSupport(
+		boolean	ipv6_pref )
 	{
 		synchronized( this ){
 			
@@ -123,6 +168,9 @@ MsgSyncNode
 				
 			contact_str 	= MsgSyncHandler.getString( contacts[0] );
 			
+			bloom_key		= null;
+			address_key		= null;
+			
 			return( true );
 		}
 	}
@@ -142,8 +190,13 @@ MsgSyncNode
 			contacts		= new DHTPluginContact[]{ _contact };
 			public_key		= _public_key;
 			
-			return( true );
+			bloom_key		= null;
+			address_key		= null;
 		}
+		
+		addressChanged();
+		
+		return( true );
 	}
 	
 	protected void
@@ -157,8 +210,13 @@ MsgSyncNode
 			
 			contact_str 	= MsgSyncHandler.getString( contacts[0] );
 			
+			bloom_key		= null;
+			address_key		= null;
+			
 			last_message_timestamp = _time;
 		}
+		
+		addressChanged();
 	}
 	
 	protected long
@@ -196,11 +254,36 @@ MsgSyncNode
 		last_tunnel = t;
 	}
 	
+	protected void
+	setRegistry(
+		MsgSyncNodeRegistry		_registry )
+	{
+		registry	= _registry;
+	}
+	
+	private void
+	addressChanged()
+	{
+		MsgSyncNodeRegistry r = registry;
+		
+		if ( r != null ){
+			
+			r.addressChanged( this );
+		}
+	}
+	
 	protected void
 	ok()
 	{
 		last_alive 	= SystemTime.getMonotonousTime();
 		fail_count	= 0;
+		
+		MsgSyncNodeRegistry r = registry;
+		
+		if ( r != null ){
+			
+			r.stateChanged( this );
+		}
 	}
 	
 	protected long
@@ -213,6 +296,13 @@ MsgSyncNode
 	failed()
 	{
 		fail_count++;
+		
+		MsgSyncNodeRegistry r = registry;
+		
+		if ( r != null ){
+			
+			r.stateChanged( this );
+		}
 	}
 
 	protected int
@@ -221,6 +311,107 @@ MsgSyncNode
 		return( fail_count );
 	}
 	
+	protected void
+	syncOK(
+		long		call_time,
+		int			received )
+	{
+		synchronized( this ){
+			
+			ewma_latency	+= EWMA_ALPHA * ( call_time - ewma_latency );
+			ewma_failure	+= EWMA_ALPHA * ( 0 - ewma_failure );
+			ewma_yield		+= EWMA_ALPHA * ( Math.min( received, MAX_YIELD ) - ewma_yield );
+		}
+	}
+	
+	protected void
+	syncFailed()
+	{
+		synchronized( this ){
+			
+			ewma_failure	+= EWMA_ALPHA * ( 1 - ewma_failure );
+		}
+	}
+	
+		/**
+		 * @return how worthwhile a sync with this node has been recently, higher is better
+		 */
+	
+	protected double
+	getSyncScore()
+	{
+		return(( 1 - ewma_failure ) * ( YIELD_PRIOR + ewma_yield ) / ( 1 + ewma_latency / LATENCY_SCALE ));
+	}
+	
+		/**
+		 * @return { latency millis, failure rate and yield in thousandths }
+		 */
+	
+	protected long[]
+	getSyncHistory()
+	{
+		synchronized( this ){
+			
+			return( new long[]{ (long)ewma_latency, (long)( ewma_failure*1000 ), (long)( ewma_yield*1000 )});
+		}
+	}
+	
+		/**
+		 * Reinstates state saved in an earlier session so the node can be synced with straight away
+		 * @param alive_ago	millis since the node was last alive
+		 * @param history	as returned by getSyncHistory, null if not known
+		 */
+	
+	protected void
+	restore(
+		long		alive_ago,
+		int			fails,
+		long[]		history )
+	{
+		synchronized( this ){
+			
+			if ( history != null ){
+				
+				ewma_latency	= history[0];
+				ewma_failure	= history[1]/1000.0;
+				ewma_yield		= history[2]/1000.0;
+			}
+		}
+		
+		last_alive	= Math.max( 1, SystemTime.getMonotonousTime() - alive_ago );
+		fail_count	= fails;
+		
+		MsgSyncNodeRegistry r = registry;
+		
+		if ( r != null ){
+			
+			r.stateChanged( this );
+		}
+	}
+	
+	protected String
+	getSyncStats()
+	{
+		return( "latency=" + (long)ewma_latency + ", fail=" + (int)( ewma_failure*100 ) + "%, yield=" + Math.round( ewma_yield*100 )/100.0);
+	}
+	
+		/**
+		 * @return the sync protocol version last seen from this node, 0 if unknown
+		 */
+	
+	protected int
+	getProtocolVersion()
+	{
+		return( protocol_version );
+	}
+	
+	protected void
+	setProtocolVersion(
+		int		version )
+	{
+		protocol_version = version;
+	}
+	
 	public byte[]
 	getUID()
 	{
@@ -233,6 +424,38 @@ MsgSyncNode
 		return( public_key );
 	}
 	
+		/**
+		 * @return the decoded public key, null if we don't have one
+		 */
+	
+	protected PublicKey
+	getDecodedPublicKey()
+	
+		throws Exception
+	{
+		byte[] pk = public_key;
+		
+		if ( pk == null ){
+			
+			return( null );
+		}
+		
+		Object[] decoded = decoded_public_key;
+		
+		if ( decoded != null && decoded[0] == pk ){
+			
+			MsgSyncKeyCache.recordNodeHit();
+			
+			return((PublicKey)decoded[1]);
+		}
+		
+		PublicKey key = MsgSyncKeyCache.getPublicKey( pk );
+		
+		decoded_public_key = new Object[]{ pk, key };
+		
+		return( key );
+	}
+	
 	public DHTPluginContact
 	getContact()
 	{
@@ -249,9 +472,146 @@ MsgSyncNode
 		
 			//  this can block for a while in the case of anonymous DHT that hasn't initialised, so delay getting it
 		
-		contact_str = MsgSyncHandler.getString( contacts[0] );
+		DHTPluginContact contact;
+		
+		synchronized( this ){
+			
+			contact = contacts[0];
+		}
+		
+		String str = MsgSyncHandler.getString( contact );
+		
+		synchronized( this ){
+			
+			if ( contacts[0] == contact && contact_str == null ){
+				
+				contact_str = str;
+			}
+		}
+		
+		return( str );
+	}
+	
+		/**
+		 * @return the address key if it has already been worked out, never blocks
+		 */
+	
+	protected MsgSyncContactKey
+	getCachedAddressKey()
+	{
+		return( address_key );
+	}
+	
+		/**
+		 * Packed form of the contact's address for identity checks and local lookups
+		 */
+	
+	protected MsgSyncContactKey
+	getAddressKey()
+	{
+		MsgSyncContactKey key = address_key;
+		
+		if ( key != null ){
+			
+			return( key );
+		}
+		
+		DHTPluginContact contact;
+		
+		synchronized( this ){
+			
+			contact = contacts[0];
+		}
+		
+			// same as the contact string, delay getting it as it can block so not done under the monitor
+		
+		key = MsgSyncContactKey.create( contact );
+		
+		synchronized( this ){
+			
+				// don't cache it if the contact changed meanwhile, it would never be cleared
+			
+			if ( contacts[0] == contact ){
+				
+				address_key = key;
+			}
+		}
+		
+		return( key );
+	}
+	
+		/**
+		 * Key used to indicate knowledge of this node's public key in sync blooms: public key followed
+		 * by contact address. Computed once and cached as it is required for every bloom build and probe
+		 * @return null if public key not yet known
+		 */
+	
+	protected byte[]
+	getBloomKey()
+	{
+		byte[] key = bloom_key;
+		
+		if ( key != null ){
+			
+			return( key );
+		}
+		
+		byte[] pub = public_key;
+		
+		if ( pub == null ){
+			
+			return( null );
+		}
+		
+		try{
+			String	str = getContactAddress();
+			
+			byte[] ad = str.getBytes( "UTF-8" );
+			
+			key = new byte[pub.length + ad.length];
+			
+			System.arraycopy( pub, 0, key, 0, pub.length );
+			System.arraycopy( ad, 0, key, pub.length, ad.length );
+			
+			synchronized( this ){
+				
+					// only cache it if it was built from the current details, otherwise a stale key
+					// could be written back after a change has cleared it
+				
+				if ( public_key == pub && contact_str == str ){
+					
+					bloom_key = key;
+				}
+			}
+			
+			return( key );
+			
+		}catch( Throwable e ){
+			
+			Debug.out( e );
+			
+			return( null );
+		}
+	}
+	
+	protected byte[]
+	getKeyFingerprint()
+	{
+		byte[] fp = key_fingerprint;
+		
+		if ( fp == null ){
+			
+				// public key never changes once set
+			
+			byte[] pub = public_key;
+			
+			if ( pub != null ){
+				
+				fp = key_fingerprint = MsgSyncKeyCache.getFingerprint( pub );
+			}
+		}
 		
-		return( contact_str );
+		return( fp );
 	}
 	
 	public String
@@ -0,0 +1,573 @@
+/*
+ * Created on Oct 17, 2026
+ *
+ * Copyright 2026 Azureus Software, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package com.vuze.plugins.azmsgsync;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.biglybt.core.util.RandomUtils;
+
+/**
+ * A channel's nodes split by state (never reached, live, failing) into arrays that are kept up to
+ * date as nodes are added, removed, succeed or fail, together with an index of nodes by contact
+ * address. This lets a sync target be picked in expected constant time without scanning or
+ * allocating.
+ *
+ * Nodes report their own state changes once added so the registry has its own lock, callers may
+ * hold the node map lock when calling in but the registry never calls out. Working out a node's
+ * address can block so it is done before taking the lock
+ */
+
+public class
+MsgSyncNodeRegistry
+{
+	protected static final int	ST_UNKNOWN	= 0;		// not failed but not yet heard from
+	protected static final int	ST_LIVE		= 1;
+	protected static final int	ST_FAILED	= 2;
+	
+	private static final int	NUM_STATES	= 3;
+	
+		// selections are masks of states
+		
+	protected static final int	SEL_UNKNOWN		= 1 << ST_UNKNOWN;
+	protected static final int	SEL_LIVE		= 1 << ST_LIVE;
+	protected static final int	SEL_FAILED		= 1 << ST_FAILED;
+	protected static final int	SEL_NOT_FAILED	= SEL_UNKNOWN | SEL_LIVE;
+	protected static final int	SEL_ALL			= SEL_NOT_FAILED | SEL_FAILED;
+	
+	private static final int	MAX_PICK_ATTEMPTS	= 16;
+	
+	private final MsgSyncNode[][]	sets	= new MsgSyncNode[NUM_STATES][16];
+	private final int[]				sizes	= new int[NUM_STATES];
+	
+	private final Map<MsgSyncContactKey,Group>	address_index = new HashMap<MsgSyncContactKey,Group>();
+	
+		// bumped whenever a node is added, removed or reports in so callers can tell if anything changed
+	
+	private int		mutation_id;
+	
+	protected void
+	add(
+		MsgSyncNode		node )
+	{
+		MsgSyncContactKey address = node.getAddressKey();
+		
+		synchronized( this ){
+			
+			if ( node.registry_state >= 0 ){
+				
+				return;
+			}
+			
+			mutation_id++;
+			
+				// set first so any state change that races with us gets applied once we're done
+				
+			node.setRegistry( this );
+			
+			Group group = getGroup( getCurrentAddress( node, address ));
+			
+			group.nodes++;
+			
+			node.registry_group = group;
+			
+			insert( node, getState( node ));
+		}
+	}
+	
+	protected synchronized void
+	remove(
+		MsgSyncNode		node )
+	{
+		if ( node.registry_state < 0 ){
+			
+			return;
+		}
+		
+		mutation_id++;
+		
+		node.setRegistry( null );
+		
+		delete( node );
+		
+		Group group = node.registry_group;
+		
+		group.nodes--;
+		
+		node.registry_group = null;
+		
+		release( group );
+	}
+	
+	protected synchronized void
+	stateChanged(
+		MsgSyncNode		node )
+	{
+		int	old_state = node.registry_state;
+		
+		if ( old_state < 0 ){
+			
+			return;
+		}
+		
+		mutation_id++;
+		
+		int	new_state = getState( node );
+		
+		if ( new_state != old_state ){
+			
+			delete( node );
+			
+			insert( node, new_state );
+		}
+	}
+	
+	protected void
+	addressChanged(
+		MsgSyncNode		node )
+	{
+		MsgSyncContactKey address = node.getAddressKey();
+		
+		synchronized( this ){
+			
+			int	state = node.registry_state;
+			
+			if ( state < 0 ){
+				
+				return;
+			}
+			
+			address = getCurrentAddress( node, address );
+			
+			Group old_group = node.registry_group;
+			
+			if ( old_group.address.equals( address )){
+				
+				return;
+			}
+			
+			mutation_id++;
+			
+			delete( node );
+			
+			old_group.nodes--;
+			
+			release( old_group );
+			
+			Group new_group = getGroup( address );
+			
+			new_group.nodes++;
+			
+			node.registry_group = new_group;
+			
+			insert( node, state );
+		}
+	}
+	
+		/**
+		 * Nodes being synced with, along with any other nodes sharing their address, aren't picked.
+		 * Works for nodes that have already been removed as well
+		 */
+
+	protected void
+	setActive(
+		MsgSyncNode		node,
+		boolean			active )
+	{
+		if ( active ){
+			
+			MsgSyncContactKey address = node.getAddressKey();
+			
+			synchronized( this ){
+				
+				if ( node.registry_active_group != null ){
+					
+					return;
+				}
+				
+				Group group = getGroup( getCurrentAddress( node, address ));
+				
+				group.active++;
+				
+				node.registry_active_group = group;
+			}
+		}else{
+			
+			synchronized( this ){
+				
+				Group group = node.registry_active_group;
+				
+				if ( group == null ){
+					
+					return;
+				}
+				
+				group.active--;
+				
+				node.registry_active_group = null;
+				
+				release( group );
+			}
+		}
+	}
+	
+		/**
+		 * @return true if the node is in one of the selected states and not excluded by being active
+		 */
+
+	protected synchronized boolean
+	isSelectable(
+		MsgSyncNode		node,
+		int				selection )
+	{
+		int	state = node.registry_state;
+		
+		return( state >= 0 && ( selection & ( 1 << state )) != 0 && isAvailable( node ));
+	}
+	
+		/**
+		 * @param by_address	if true each distinct address is equally likely, rather than each node
+		 * @return null if there is nothing selectable
+		 */
+
+	protected synchronized MsgSyncNode
+	pick(
+		int			selection,
+		boolean		by_address )
+	{
+		int	total = getCount( selection );
+		
+		if ( total == 0 ){
+			
+			return( null );
+		}
+		
+			// rejection sampling - weighting by the inverse of the number of nodes at the address
+			// gives each address an even chance. almost all addresses have just the one node
+			
+		for ( int i=0;i<MAX_PICK_ATTEMPTS;i++){
+			
+			MsgSyncNode node = get( selection, RandomUtils.nextInt( total ));
+			
+			if ( !isAvailable( node )){
+				
+				continue;
+			}
+			
+			if ( by_address ){
+				
+				int	at_address = node.registry_group.getCount( selection );
+				
+				if ( at_address > 1 && RandomUtils.nextInt( at_address ) != 0 ){
+					
+					continue;
+				}
+			}
+			
+			return( node );
+		}
+		
+			// unlucky or most are active, walk from a random start so we only fail if there's
+			// genuinely nothing available
+			
+		int	start = RandomUtils.nextInt( total );
+		
+		for ( int i=0;i<total;i++){
+			
+			MsgSyncNode node = get( selection, ( start + i ) % total );
+			
+			if ( isAvailable( node )){
+				
+				return( node );
+			}
+		}
+		
+		return( null );
+	}
+	
+		/**
+		 * Power of k choices - the best scoring of a few random picks. Only ever chooses among
+		 * random samples so everything keeps a chance of being selected
+		 */
+	
+	protected synchronized MsgSyncNode
+	pickBest(
+		int		selection,
+		int		choices )
+	{
+		MsgSyncNode	best 		= null;
+		double		best_score	= -1;
+		
+		for ( int i=0;i<choices;i++){
+			
+			MsgSyncNode node = pick( selection, true );
+			
+			if ( node == null ){
+				
+				break;
+			}
+			
+			double score = node.getSyncScore();
+			
+			if ( score > best_score ){
+				
+				best		= node;
+				best_score	= score;
+			}
+		}
+		
+		return( best );
+	}
+	
+	protected synchronized int
+	getCount(
+		int		selection )
+	{
+		int	result = 0;
+		
+		for ( int i=0;i<NUM_STATES;i++){
+			
+			if (( selection & ( 1 << i )) != 0 ){
+				
+				result += sizes[i];
+			}
+		}
+		
+		return( result );
+	}
+	
+	protected synchronized List<MsgSyncNode>
+	getNodes(
+		int		selection )
+	{
+		List<MsgSyncNode>	result = new ArrayList<MsgSyncNode>( getCount( selection ));
+		
+		for ( int i=0;i<NUM_STATES;i++){
+			
+			if (( selection & ( 1 << i )) != 0 ){
+				
+				MsgSyncNode[]	set = sets[i];
+				
+				for ( int j=0;j<sizes[i];j++){
+					
+					result.add( set[j] );
+				}
+			}
+		}
+		
+		return( result );
+	}
+	
+		/**
+		 * The address may have changed again since it was worked out, in which case the newer one
+		 * will be cached by now and a later address change notification is on its way
+		 */
+	
+	private static MsgSyncContactKey
+	getCurrentAddress(
+		MsgSyncNode			node,
+		MsgSyncContactKey	address )
+	{
+		MsgSyncContactKey cached = node.getCachedAddressKey();
+		
+		return( cached==null?address:cached );
+	}
+	
+	private static int
+	getState(
+		MsgSyncNode		node )
+	{
+		if ( node.getFailCount() > 0 ){
+			
+			return( ST_FAILED );
+			
+		}else if ( node.getLastAlive() > 0 ){
+			
+			return( ST_LIVE );
+			
+		}else{
+			
+			return( ST_UNKNOWN );
+		}
+	}
+	
+	private static boolean
+	isAvailable(
+		MsgSyncNode		node )
+	{
+		return( node.registry_group.active == 0 && node.registry_active_group == null );
+	}
+	
+	private MsgSyncNode
+	get(
+		int		selection,
+		int		index )
+	{
+		for ( int i=0;i<NUM_STATES;i++){
+			
+			if (( selection & ( 1 << i )) != 0 ){
+				
+				if ( index < sizes[i] ){
+					
+					return( sets[i][index] );
+				}
+				
+				index -= sizes[i];
+			}
+		}
+		
+		throw( new IndexOutOfBoundsException());
+	}
+	
+	private void
+	insert(
+		MsgSyncNode		node,
+		int				state )
+	{
+		MsgSyncNode[]	set = sets[state];
+		
+		int	size = sizes[state];
+		
+		if ( size == set.length ){
+			
+			MsgSyncNode[] bigger = new MsgSyncNode[ size*2 ];
+			
+			System.arraycopy( set, 0, bigger, 0, size );
+			
+			sets[state] = set = bigger;
+		}
+		
+		set[size] = node;
+		
+		sizes[state] = size + 1;
+		
+		node.registry_state	= state;
+		node.registry_index	= size;
+		
+		node.registry_group.counts[state]++;
+	}
+	
+	private void
+	delete(
+		MsgSyncNode		node )
+	{
+		int	state 	= node.registry_state;
+		int	index	= node.registry_index;
+		
+		MsgSyncNode[]	set = sets[state];
+		
+		int	last = --sizes[state];
+		
+			// swap the last entry into the hole
+			
+		if ( index != last ){
+			
+			MsgSyncNode moved = set[last];
+			
+			set[index] = moved;
+			
+			moved.registry_index = index;
+		}
+		
+		set[last] = null;
+		
+		node.registry_state	= -1;
+		node.registry_index	= -1;
+		
+		node.registry_group.counts[state]--;
+	}
+	
+	private Group
+	getGroup(
+		MsgSyncContactKey		address )
+	{
+		Group group = address_index.get( address );
+		
+		if ( group == null ){
+			
+			group = new Group( address );
+			
+			address_index.put( address, group );
+		}
+		
+		return( group );
+	}
+	
+	private void
+	release(
+		Group		group )
+	{
+		if ( group.nodes == 0 && group.active == 0 ){
+			
+			address_index.remove( group.address );
+		}
+	}
+	
+	protected synchronized int
+	getMutationId()
+	{
+		return( mutation_id );
+	}
+	
+	protected synchronized String
+	getStats()
+	{
+		return( "live=" + sizes[ST_LIVE] + ", unknown=" + sizes[ST_UNKNOWN] + ", failed=" + sizes[ST_FAILED] + ", addresses=" + address_index.size());
+	}
+	
+	protected static class
+	Group
+	{
+		private final MsgSyncContactKey	address;
+		
+		private final int[]		counts	= new int[NUM_STATES];
+		
+		private int		nodes;
+		private int		active;
+		
+		private
+		Group(
+			MsgSyncContactKey		_address )
+		{
+			address	= _address;
+		}
+		
+		private int
+		getCount(
+			int		selection )
+		{
+			int	result = 0;
+			
+			for ( int i=0;i<NUM_STATES;i++){
+				
+				if (( selection & ( 1 << i )) != 0 ){
+					
+					result += counts[i];
+				}
+			}
+			
+			return( result );
+		}
+	}
+}
@@ -538,6 +538,13 @@ MsgSyncPlugin
 		return( false );
 	}
 	
+	protected boolean
+	isGlobalBan(
+		byte[]		pk )
+	{
+		return( global_bans.containsKey( pk ));
+	}
+	
 	protected void
 	addGlobalBan(
 		byte[] 		pk )
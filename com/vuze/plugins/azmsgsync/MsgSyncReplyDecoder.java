@@ -0,0 +1,317 @@
+/*
+ * Created on Oct 17, 2026
+ *
+ * Copyright 2026 Azureus Software, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package com.vuze.plugins.azmsgsync;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes the bencoded message list of a (decompressed) sync reply one entry at a time so that each
+ * message can be verified and added as soon as it has been read rather than after the whole reply
+ * has been turned into a tree of maps. Produces the same value types as BDecoder - Map with String
+ * keys, List, Long and byte[]
+ */
+
+public class
+MsgSyncReplyDecoder
+{
+	private static final int	MAX_DEPTH	= 16;
+	
+	private final InputStream		is;
+	private final int				max_bytes;
+	
+	private int		bytes_read;
+	private int		peeked	= -1;
+	
+	protected
+	MsgSyncReplyDecoder(
+		InputStream		_is,
+		int				_max_bytes )
+	{
+		is			= _is;
+		max_bytes	= _max_bytes;
+	}
+	
+		/**
+		 * @return the top level map with the message list entry removed
+		 */
+
+	protected Map<String,Object>
+	decode(
+		MessageListener		listener )
+		
+		throws IOException
+	{
+		if ( read() != 'd' ){
+			
+			throw( new IOException( "Dictionary expected" ));
+		}
+		
+		Map<String,Object>	result = new HashMap<String,Object>();
+		
+		while( peek() != 'e' ){
+			
+			String key = new String( readBytes(), "UTF-8" );
+			
+			if ( key.equals( "m" ) && peek() == 'l' ){
+				
+				read();
+				
+				while( peek() != 'e' ){
+					
+					if ( peek() == 'd' ){
+						
+						listener.messageDecoded( readMap( 1 ));
+						
+					}else{
+						
+						readValue( 1 );
+					}
+				}
+				
+				read();
+				
+			}else{
+				
+				result.put( key, readValue( 1 ));
+			}
+		}
+		
+		read();
+		
+		return( result );
+	}
+	
+	private Object
+	readValue(
+		int		depth )
+		
+		throws IOException
+	{
+		if ( depth > MAX_DEPTH ){
+			
+			throw( new IOException( "Nesting too deep" ));
+		}
+		
+		int	c = peek();
+		
+		if ( c == 'd' ){
+			
+			return( readMap( depth ));
+			
+		}else if ( c == 'l' ){
+			
+			read();
+			
+			List<Object>	list = new ArrayList<Object>();
+			
+			while( peek() != 'e' ){
+				
+				list.add( readValue( depth+1 ));
+			}
+			
+			read();
+			
+			return( list );
+			
+		}else if ( c == 'i' ){
+			
+			read();
+			
+			return( readNumber( 'e' ));
+			
+		}else{
+			
+			return( readBytes());
+		}
+	}
+	
+	private Map<String,Object>
+	readMap(
+		int		depth )
+		
+		throws IOException
+	{
+		if ( depth > MAX_DEPTH ){
+			
+			throw( new IOException( "Nesting too deep" ));
+		}
+		
+		if ( read() != 'd' ){
+			
+			throw( new IOException( "Dictionary expected" ));
+		}
+		
+		Map<String,Object>	map = new HashMap<String,Object>();
+		
+		while( peek() != 'e' ){
+			
+			String key = new String( readBytes(), "UTF-8" );
+			
+			map.put( key, readValue( depth+1 ));
+		}
+		
+		read();
+		
+		return( map );
+	}
+	
+	private byte[]
+	readBytes()
+	
+		throws IOException
+	{
+		long	len = readNumber( ':' );
+		
+		if ( len < 0 || len > max_bytes - bytes_read ){
+			
+			throw( new IOException( "Invalid length: " + len ));
+		}
+		
+		byte[]	bytes = new byte[(int)len];
+		
+			// the length terminator has been consumed so there's never a peeked byte here
+			
+		int	pos = 0;
+		
+		while( pos < len ){
+			
+			int	num = is.read( bytes, pos, (int)len - pos );
+			
+			if ( num <= 0 ){
+				
+				throw( new EOFException());
+			}
+			
+			pos += num;
+		}
+		
+		bytes_read += len;
+		
+		return( bytes );
+	}
+	
+	private long
+	readNumber(
+		char	terminator )
+		
+		throws IOException
+	{
+		long	result 		= 0;
+		boolean	negative	= false;
+		int		digits		= 0;
+		
+		while( true ){
+			
+			int	c = read();
+			
+			if ( c == terminator ){
+				
+				break;
+				
+			}else if ( c == '-' && digits == 0 && !negative ){
+				
+				negative = true;
+				
+			}else if ( c >= '0' && c <= '9' && digits < 18 ){
+				
+				result = result*10 + ( c - '0' );
+				
+				digits++;
+				
+			}else{
+				
+				throw( new IOException( "Invalid number" ));
+			}
+		}
+		
+		if ( digits == 0 ){
+			
+			throw( new IOException( "Invalid number" ));
+		}
+		
+		return( negative?-result:result );
+	}
+	
+	private int
+	peek()
+	
+		throws IOException
+	{
+		if ( peeked == -1 ){
+			
+			peeked = readSupport();
+		}
+		
+		return( peeked );
+	}
+	
+	private int
+	read()
+	
+		throws IOException
+	{
+		if ( peeked != -1 ){
+			
+			int	result = peeked;
+			
+			peeked = -1;
+			
+			return( result );
+		}
+		
+		return( readSupport());
+	}
+	
+	private int
+	readSupport()
+	
+		throws IOException
+	{
+		int	c = is.read();
+		
+		if ( c == -1 ){
+			
+			throw( new EOFException());
+		}
+		
+		if ( ++bytes_read > max_bytes ){
+			
+			throw( new IOException( "Reply too large" ));
+		}
+		
+		return( c );
+	}
+	
+	protected interface
+	MessageListener
+	{
+		public void
+		messageDecoded(
+			Map<String,Object>		message );
+	}
+}
@@ -0,0 +1,250 @@
+/*
+ * Created on Oct 17, 2026
+ *
+ * Copyright 2026 Azureus Software, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package com.vuze.plugins.azmsgsync;
+
+import java.util.Arrays;
+
+/**
+ * Set of message signatures as an open addressing table keyed by a 64 bit fingerprint of each
+ * signature. Lookups don't allocate, the full signature is only compared when fingerprints match.
+ * Uses linear probing with backward shift deletion so there are no deleted markers to clean up.
+ *
+ * Not thread safe
+ */
+
+public class
+MsgSyncSigIndex
+{
+	private static final long	SEED	= 0x2545f4914f6cdd1dL;
+	
+	private long[]		fingerprints;
+	private byte[][]	signatures;
+	private int			size;
+	
+	protected
+	MsgSyncSigIndex(
+		int		expected_size )
+	{
+		int	cap = 16;
+		
+		while( cap < expected_size*2 ){
+			
+			cap <<= 1;
+		}
+		
+		fingerprints	= new long[cap];
+		signatures		= new byte[cap][];
+	}
+	
+	private
+	MsgSyncSigIndex(
+		MsgSyncSigIndex		other )
+	{
+		fingerprints	= other.fingerprints.clone();
+		signatures		= other.signatures.clone();
+		size			= other.size;
+	}
+	
+		/**
+		 * @return an independent copy
+		 */
+
+	protected MsgSyncSigIndex
+	copy()
+	{
+		return( new MsgSyncSigIndex( this ));
+	}
+	
+	protected int
+	size()
+	{
+		return( size );
+	}
+	
+	protected boolean
+	contains(
+		byte[]		signature )
+	{
+		return( find( signature, fingerprint( signature )) >= 0 );
+	}
+	
+		/**
+		 * @return false if already present
+		 */
+
+	protected boolean
+	add(
+		byte[]		signature )
+	{
+		long	fp = fingerprint( signature );
+		
+		if ( find( signature, fp ) >= 0 ){
+			
+			return( false );
+		}
+		
+		if (( size + 1 ) * 2 > signatures.length ){
+			
+			grow();
+		}
+		
+		insert( signature, fp );
+		
+		size++;
+		
+		return( true );
+	}
+	
+		/**
+		 * @return false if not present
+		 */
+
+	protected boolean
+	remove(
+		byte[]		signature )
+	{
+		int	slot = find( signature, fingerprint( signature ));
+		
+		if ( slot < 0 ){
+			
+			return( false );
+		}
+		
+		int	mask = signatures.length - 1;
+		
+		signatures[slot] = null;
+		
+		size--;
+		
+			// shift back any following entries that would no longer be reachable
+			
+		int	hole = slot;
+		int	pos	 = ( slot + 1 ) & mask;
+		
+		while( signatures[pos] != null ){
+			
+			int	home = (int)fingerprints[pos] & mask;
+			
+			if ((( pos - home ) & mask ) >= (( pos - hole ) & mask )){
+				
+				signatures[hole]	= signatures[pos];
+				fingerprints[hole]	= fingerprints[pos];
+				
+				signatures[pos]	= null;
+				
+				hole = pos;
+			}
+			
+			pos = ( pos + 1 ) & mask;
+		}
+		
+		return( true );
+	}
+	
+	protected byte[][]
+	getSignatures()
+	{
+		byte[][]	result = new byte[size][];
+		
+		int	pos = 0;
+		
+		for ( byte[] sig: signatures ){
+			
+			if ( sig != null ){
+				
+				result[pos++] = sig;
+			}
+		}
+		
+		return( result );
+	}
+	
+	private int
+	find(
+		byte[]		signature,
+		long		fp )
+	{
+		int	mask = signatures.length - 1;
+		
+		int	pos = (int)fp & mask;
+		
+		while( true ){
+			
+			byte[]	sig = signatures[pos];
+			
+			if ( sig == null ){
+				
+				return( -1 );
+			}
+			
+			if ( fingerprints[pos] == fp && Arrays.equals( sig, signature )){
+				
+				return( pos );
+			}
+			
+			pos = ( pos + 1 ) & mask;
+		}
+	}
+	
+	private void
+	insert(
+		byte[]		signature,
+		long		fp )
+	{
+		int	mask = signatures.length - 1;
+		
+		int	pos = (int)fp & mask;
+		
+		while( signatures[pos] != null ){
+			
+			pos = ( pos + 1 ) & mask;
+		}
+		
+		signatures[pos]		= signature;
+		fingerprints[pos]	= fp;
+	}
+	
+	private void
+	grow()
+	{
+		long[]		old_fps		= fingerprints;
+		byte[][]	old_sigs	= signatures;
+		
+		fingerprints	= new long[ old_fps.length*2 ];
+		signatures		= new byte[ old_sigs.length*2 ][];
+		
+		for ( int i=0;i<old_sigs.length;i++){
+			
+			if ( old_sigs[i] != null ){
+				
+				insert( old_sigs[i], old_fps[i] );
+			}
+		}
+	}
+	
+	private static long
+	fingerprint(
+		byte[]		signature )
+	{
+		return( MsgSyncIBLT.fingerprint( signature, SEED, false ));
+	}
+}